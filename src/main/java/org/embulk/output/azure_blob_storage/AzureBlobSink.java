@@ -0,0 +1,161 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockListingFilter;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.blob.DeleteSnapshotsOption;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+public class AzureBlobSink implements BlobSink
+{
+    private static final Logger log = Exec.getLogger(AzureBlobSink.class);
+
+    private static final int LIST_PAGE_SIZE = 5000; // max number of results of a List Blobs request
+
+    private final CloudBlobClient client;
+
+    public AzureBlobSink(CloudBlobClient client)
+    {
+        this.client = client;
+    }
+
+    @Override
+    public void createContainerIfNotExists(String containerName) throws IOException
+    {
+        try {
+            CloudBlobContainer container = client.getContainerReference(containerName);
+            if (!container.exists()) {
+                log.info("container {} doesn't exist and is created.", containerName);
+                container.createIfNotExists();
+            }
+        }
+        catch (StorageException ex) {
+            throw new IOException(ex);
+        }
+        catch (URISyntaxException ex) {
+            throw new ConfigException(ex);
+        }
+    }
+
+    @Override
+    public void stageBlock(String containerName, String path, String blockId, byte[] data, int offset, int length) throws IOException
+    {
+        try {
+            CloudBlockBlob blob = getBlob(containerName, path);
+            blob.uploadBlock(blockId, new ByteArrayInputStream(data, offset, length), length);
+        }
+        catch (StorageException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    @Override
+    public void commitBlockList(String containerName, String path, List<String> blockIds, String contentMd5, Map<String, String> metadata) throws IOException
+    {
+        List<BlockEntry> entries = new ArrayList<>(blockIds.size());
+        for (String blockId : blockIds) {
+            entries.add(new BlockEntry(blockId));
+        }
+        try {
+            CloudBlockBlob blob = getBlob(containerName, path);
+            // metadata and Content-MD5 are sent with the Put Block List request
+            blob.setMetadata(new HashMap<>(metadata));
+            if (contentMd5 != null) {
+                blob.getProperties().setContentMD5(contentMd5);
+            }
+            blob.commitBlockList(entries);
+        }
+        catch (StorageException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    @Override
+    public List<String> getCommittedBlockList(String containerName, String path) throws IOException
+    {
+        try {
+            List<String> blockIds = new ArrayList<>();
+            for (BlockEntry entry : getBlob(containerName, path).downloadBlockList(BlockListingFilter.COMMITTED, null, null, null)) {
+                blockIds.add(entry.getId());
+            }
+            return blockIds;
+        }
+        catch (StorageException ex) {
+            if (ex.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return Collections.emptyList();
+            }
+            throw new IOException(ex);
+        }
+    }
+
+    @Override
+    public void listBlobs(String containerName, String prefix, Consumer<List<String>> pageConsumer) throws IOException
+    {
+        try {
+            CloudBlobContainer container = client.getContainerReference(containerName);
+            ResultContinuation token = null;
+            do {
+                ResultSegment<ListBlobItem> segment = container.listBlobsSegmented(prefix, true,
+                        EnumSet.noneOf(BlobListingDetails.class), LIST_PAGE_SIZE, token, null, null);
+                List<String> page = new ArrayList<>(segment.getLength());
+                for (ListBlobItem item : segment.getResults()) {
+                    if (item instanceof CloudBlob) {
+                        page.add(((CloudBlob) item).getName());
+                    }
+                }
+                pageConsumer.accept(page);
+                token = segment.getContinuationToken();
+            }
+            while (token != null);
+        }
+        catch (StorageException ex) {
+            throw new IOException(ex);
+        }
+        catch (URISyntaxException ex) {
+            throw new ConfigException(ex);
+        }
+    }
+
+    @Override
+    public boolean deleteBlobIfExists(String containerName, String path) throws IOException
+    {
+        try {
+            return getBlob(containerName, path).deleteIfExists(DeleteSnapshotsOption.INCLUDE_SNAPSHOTS, null, null, null);
+        }
+        catch (StorageException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private CloudBlockBlob getBlob(String containerName, String path) throws StorageException
+    {
+        try {
+            return client.getContainerReference(containerName).getBlockBlobReference(path);
+        }
+        catch (URISyntaxException ex) {
+            throw new ConfigException(ex);
+        }
+    }
+}
@@ -1,12 +1,14 @@
 package org.embulk.output.azure_blob_storage;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
 import com.microsoft.azure.storage.CloudStorageAccount;
-import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.blob.CloudBlobClient;
-import com.microsoft.azure.storage.blob.CloudBlobContainer;
-import com.microsoft.azure.storage.blob.CloudBlockBlob;
 import org.embulk.config.Config;
 import org.embulk.config.ConfigDefault;
 import org.embulk.config.ConfigDiff;
@@ -24,6 +26,8 @@ import org.embulk.spi.util.RetryExecutor.Retryable;
 import org.slf4j.Logger;
 import static org.embulk.spi.util.RetryExecutor.retryExecutor;
 
+import javax.crypto.SecretKey;
+
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -32,9 +36,24 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 public class AzureBlobStorageFileOutputPlugin
         implements FileOutputPlugin
@@ -43,9 +62,11 @@ public class AzureBlobStorageFileOutputPlugin
             extends Task
     {
         @Config("account_name")
+        @ConfigDefault("\"\"")
         String getAccountName();
 
         @Config("account_key")
+        @ConfigDefault("\"\"")
         String getAccountKey();
 
         @Config("container")
@@ -64,8 +85,122 @@ public class AzureBlobStorageFileOutputPlugin
         @Config("max_connection_retry")
         @ConfigDefault("10") // 10 times retry to connect Azure Blob Storage if failed.
         int getMaxConnectionRetry();
+
+        @Config("block_size")
+        @ConfigDefault("4194304") // 4MB per Put Block request
+        int getBlockSize();
+
+        @Config("sink")
+        @ConfigDefault("\"azure\"")
+        SinkType getSink();
+
+        @Config("local_sink_directory")
+        @ConfigDefault("null")
+        Optional<String> getLocalSinkDirectory();
+
+        @Config("local_sink_latency_ms")
+        @ConfigDefault("0")
+        long getLocalSinkLatencyMillis();
+
+        @Config("local_sink_bandwidth")
+        @ConfigDefault("0") // bytes per second. 0 means unlimited.
+        long getLocalSinkBandwidth();
+
+        @Config("hedge_requests")
+        @ConfigDefault("false")
+        boolean getHedgeRequests();
+
+        @Config("hedge_percentile")
+        @ConfigDefault("99.0") // send a hedged request when a request is slower than p99 of recent requests
+        double getHedgePercentile();
+
+        @Config("hedge_max_ratio")
+        @ConfigDefault("0.05") // hedged requests are up to 5% of all requests
+        double getHedgeMaxRatio();
+
+        @Config("hedge_min_delay_ms")
+        @ConfigDefault("100")
+        long getHedgeMinDelayMillis();
+
+        @Config("dedup")
+        @ConfigDefault("false")
+        boolean getDedup();
+
+        @Config("encryption")
+        @ConfigDefault("\"none\"")
+        EncryptionType getEncryption();
+
+        @Config("encryption_key_file")
+        @ConfigDefault("null")
+        Optional<String> getEncryptionKeyFile();
+
+        @Config("encryption_threads")
+        @ConfigDefault("null") // number of available processors by default
+        Optional<Integer> getEncryptionThreads();
+
+        @Config("delete_prefix_before_run")
+        @ConfigDefault("false")
+        boolean getDeletePrefixBeforeRun();
+
+        @Config("delete_stale_after_commit")
+        @ConfigDefault("false")
+        boolean getDeleteStaleAfterCommit();
+
+        @Config("delete_threads")
+        @ConfigDefault("16")
+        int getDeleteThreads();
+    }
+
+    public enum SinkType
+    {
+        AZURE,
+        LOCAL,
+        MEMORY;
+
+        @JsonCreator
+        public static SinkType fromString(String value)
+        {
+            for (SinkType type : SinkType.values()) {
+                if (type.name().equalsIgnoreCase(value)) {
+                    return type;
+                }
+            }
+            throw new ConfigException(String.format("Unknown sink '%s'. Supported sinks are azure, local, memory", value));
+        }
+
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    public enum EncryptionType
+    {
+        NONE,
+        AES_GCM,
+        AES_CTR;
+
+        @JsonCreator
+        public static EncryptionType fromString(String value)
+        {
+            for (EncryptionType type : EncryptionType.values()) {
+                if (type.name().equalsIgnoreCase(value)) {
+                    return type;
+                }
+            }
+            throw new ConfigException(String.format("Unknown encryption '%s'. Supported encryptions are none, aes_gcm, aes_ctr", value));
+        }
+
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
     }
 
+    private static final int MAX_BLOCK_SIZE = 100 * 1024 * 1024;
+
     private static final Logger log = Exec.getLogger(AzureBlobStorageFileOutputPlugin.class);
 
     @Override
@@ -74,19 +209,46 @@ public class AzureBlobStorageFileOutputPlugin
     {
         PluginTask task = config.loadConfig(PluginTask.class);
 
-        try {
-            CloudBlobClient blobClient = newAzureClient(task.getAccountName(), task.getAccountKey());
-            String containerName = task.getContainer();
-            CloudBlobContainer container = blobClient.getContainerReference(containerName);
-            if (!container.exists()) {
-                log.info("container {} doesn't exist and is created.", containerName);
-                container.createIfNotExists();
+        if (task.getBlockSize() <= 0 || task.getBlockSize() > MAX_BLOCK_SIZE) {
+            throw new ConfigException(String.format("block_size must be between 1 and %d", MAX_BLOCK_SIZE));
+        }
+        if (task.getHedgePercentile() <= 0 || task.getHedgePercentile() > 100) {
+            throw new ConfigException("hedge_percentile must be greater than 0 and less than or equal to 100");
+        }
+        if (task.getHedgeMaxRatio() < 0 || task.getHedgeMaxRatio() > 1) {
+            throw new ConfigException("hedge_max_ratio must be between 0 and 1");
+        }
+        if (task.getDeleteThreads() <= 0) {
+            throw new ConfigException("delete_threads must be greater than 0");
+        }
+        if (task.getDedup() && task.getDeletePrefixBeforeRun()) {
+            throw new ConfigException("dedup can't be used with delete_prefix_before_run because the blocks to reuse are deleted before upload");
+        }
+        if (task.getEncryption() != EncryptionType.NONE) {
+            if (task.getDedup()) {
+                throw new ConfigException("dedup can't be used with encryption because every blob is encrypted with a new key");
+            }
+            if (task.getBlockSize() > MAX_BLOCK_SIZE - 32) {
+                throw new ConfigException(String.format("block_size must be less than or equal to %d with encryption", MAX_BLOCK_SIZE - 32));
             }
+            if (task.getEncryptionThreads().isPresent() && task.getEncryptionThreads().get() <= 0) {
+                throw new ConfigException("encryption_threads must be greater than 0");
+            }
+            loadKeyEncryptionKey(task);
+        }
+
+        BlobSink sink = newSink(task);
+        try {
+            sink.createContainerIfNotExists(task.getContainer());
         }
-        catch (StorageException | URISyntaxException ex) {
+        catch (IOException ex) {
             throw new ConfigException(ex);
         }
 
+        if (task.getDeletePrefixBeforeRun()) {
+            deleteBlobs(sink, task, Collections.<String>emptySet());
+        }
+
         return resume(task.dump(), taskCount, control);
     }
 
@@ -101,6 +263,55 @@ public class AzureBlobStorageFileOutputPlugin
     @Override
     public void cleanup(TaskSource taskSource, int taskCount, List<TaskReport> successTaskReports)
     {
+        PluginTask task = taskSource.loadTask(PluginTask.class);
+        if (task.getDeleteStaleAfterCommit()) {
+            Set<String> writtenPaths = new HashSet<>();
+            for (TaskReport report : successTaskReports) {
+                writtenPaths.addAll(Arrays.asList(report.get(String[].class, "paths", new String[0])));
+            }
+            deleteBlobs(newSink(task), task, writtenPaths);
+        }
+    }
+
+    private static void deleteBlobs(BlobSink sink, PluginTask task, Set<String> excludedPaths)
+    {
+        log.info("Deleting blobs under {}/{}", task.getContainer(), task.getPathPrefix());
+        BlobPrefixDeleter deleter = new BlobPrefixDeleter(sink, task.getContainer(), task.getDeleteThreads(), task.getMaxConnectionRetry());
+        try {
+            long deleted = deleter.deleteAll(task.getPathPrefix(), excludedPaths);
+            log.info("Deleted {} blobs under {}/{}", deleted, task.getContainer(), task.getPathPrefix());
+        }
+        catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
+    private static SecretKey loadKeyEncryptionKey(PluginTask task)
+    {
+        if (!task.getEncryptionKeyFile().isPresent()) {
+            throw new ConfigException("encryption_key_file is required when encryption is enabled");
+        }
+        return BlockEncryptor.loadKeyEncryptionKey(Paths.get(task.getEncryptionKeyFile().get()));
+    }
+
+    private static BlobSink newSink(PluginTask task)
+    {
+        switch (task.getSink()) {
+            case LOCAL:
+                if (!task.getLocalSinkDirectory().isPresent()) {
+                    throw new ConfigException("local_sink_directory is required when sink is local");
+                }
+                return new LocalFileBlobSink(Paths.get(task.getLocalSinkDirectory().get()),
+                        task.getLocalSinkLatencyMillis(), task.getLocalSinkBandwidth());
+            case MEMORY:
+                return InMemoryBlobSink.shared();
+            case AZURE:
+            default:
+                if (task.getAccountName().isEmpty() || task.getAccountKey().isEmpty()) {
+                    throw new ConfigException("account_name and account_key are required when sink is azure");
+                }
+                return new AzureBlobSink(newAzureClient(task.getAccountName(), task.getAccountKey()));
+        }
     }
 
     private static CloudBlobClient newAzureClient(String accountName, String accountKey)
@@ -123,33 +334,68 @@ public class AzureBlobStorageFileOutputPlugin
     public TransactionalFileOutput open(TaskSource taskSource, final int taskIndex)
     {
         final PluginTask task = taskSource.loadTask(PluginTask.class);
-        CloudBlobClient client = newAzureClient(task.getAccountName(), task.getAccountKey());
-        return new AzureFileOutput(client, task, taskIndex);
+        return new AzureFileOutput(newSink(task), task, taskIndex);
     }
 
     public static class AzureFileOutput implements TransactionalFileOutput
     {
-        private final CloudBlobClient client;
+        private final BlobSink sink;
+        private final HedgingBlobSink hedgingSink;
         private final String containerName;
         private final String pathPrefix;
         private final String sequenceFormat;
         private final String pathSuffix;
         private final int maxConnectionRetry;
-        private BufferedOutputStream output = null;
+        private final int blockSize;
+        private final boolean dedup;
+        private final EncryptionType encryption;
+        private final SecretKey keyEncryptionKey;
+        private final EncryptionWorkerPool encryptionPool;
+        private final List<String> uploadedPaths = new ArrayList<>();
+        private ContentDefinedChunker chunker = null;
+        private BlockEncryptor encryptor = null;
+        private ParallelEncryptingOutputStream encryptingOutput = null;
+        private long reusedBlockCount = 0;
+        private long reusedBytes = 0;
+        // reuse of the current upload attempt, added to the totals only after the commit succeeds
+        private long attemptReusedBlockCount = 0;
+        private long attemptReusedBytes = 0;
+        private OutputStream output = null;
+        private int uploadBlockSize;
+        private Map<String, String> metadata = ImmutableMap.of();
         private int fileIndex;
         private File file;
         private String filePath;
         private int taskIndex;
 
-        public AzureFileOutput(CloudBlobClient client, PluginTask task, int taskIndex)
+        public AzureFileOutput(BlobSink sink, PluginTask task, int taskIndex)
         {
-            this.client = client;
+            if (task.getHedgeRequests()) {
+                HedgeTracker tracker = HedgeTracker.shared(task.getHedgePercentile(), task.getHedgeMaxRatio(), task.getHedgeMinDelayMillis());
+                this.hedgingSink = new HedgingBlobSink(sink, tracker);
+                this.sink = hedgingSink;
+            }
+            else {
+                this.hedgingSink = null;
+                this.sink = sink;
+            }
             this.containerName = task.getContainer();
             this.taskIndex = taskIndex;
             this.pathPrefix = task.getPathPrefix();
             this.sequenceFormat = task.getSequenceFormat();
             this.pathSuffix = task.getFileNameExtension();
             this.maxConnectionRetry = task.getMaxConnectionRetry();
+            this.blockSize = task.getBlockSize();
+            this.dedup = task.getDedup();
+            this.encryption = task.getEncryption();
+            if (encryption != EncryptionType.NONE) {
+                this.keyEncryptionKey = loadKeyEncryptionKey(task);
+                this.encryptionPool = EncryptionWorkerPool.shared(task.getEncryptionThreads().or(Runtime.getRuntime().availableProcessors()));
+            }
+            else {
+                this.keyEncryptionKey = null;
+                this.encryptionPool = null;
+            }
         }
 
         @Override
@@ -166,6 +412,18 @@ public class AzureBlobStorageFileOutputPlugin
                 file = Exec.getTempFileSpace().createTempFile();
                 log.info("Writing local file {}", file.getAbsolutePath());
                 output = new BufferedOutputStream(new FileOutputStream(file));
+                uploadBlockSize = blockSize;
+                if (encryption != EncryptionType.NONE) {
+                    // blocks are encrypted as they are written, so the local file holds encrypted blocks.
+                    // metadata is set when the file is closed because it includes the number of blocks.
+                    encryptor = new BlockEncryptor(encryption);
+                    encryptingOutput = new ParallelEncryptingOutputStream(output, encryptor, blockSize, encryptionPool);
+                    output = encryptingOutput;
+                    uploadBlockSize = blockSize + encryptor.getOverhead();
+                }
+                if (dedup) {
+                    chunker = new ContentDefinedChunker(blockSize, Math.min(blockSize * 4, MAX_BLOCK_SIZE));
+                }
             }
             catch (IOException ex) {
                 throw Throwables.propagate(ex);
@@ -178,8 +436,11 @@ public class AzureBlobStorageFileOutputPlugin
                 try {
                     output.close();
                     fileIndex++;
+                    if (encryptingOutput != null) {
+                        metadata = encryptor.getMetadata(keyEncryptionKey, blockSize, encryptingOutput.getBlockCount());
+                    }
                 }
-                catch (IOException ex) {
+                catch (IOException | GeneralSecurityException ex) {
                     throw Throwables.propagate(ex);
                 }
             }
@@ -190,6 +451,9 @@ public class AzureBlobStorageFileOutputPlugin
         {
             try {
                 output.write(buffer.array(), buffer.offset(), buffer.limit());
+                if (chunker != null) {
+                    chunker.update(buffer.array(), buffer.offset(), buffer.limit());
+                }
             }
             catch (IOException ex) {
                 throw Throwables.propagate(ex);
@@ -216,15 +480,24 @@ public class AzureBlobStorageFileOutputPlugin
                             .withMaxRetryWait(30 * 1000)
                             .runInterruptible(new Retryable<Void>() {
                                 @Override
-                                public Void call() throws StorageException, URISyntaxException, IOException, RetryGiveupException
+                                public Void call() throws IOException, RetryGiveupException
                                 {
-                                    CloudBlobContainer container = client.getContainerReference(containerName);
-                                    CloudBlockBlob blob = container.getBlockBlobReference(filePath);
                                     log.info("Upload start {} to {}", file.getAbsolutePath(), filePath);
-                                    try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(file))) {
-                                        blob.upload(in, file.length());
-                                        log.info("Upload completed {} to {}", file.getAbsolutePath(), filePath);
+                                    List<String> blockIds;
+                                    // Put Block List doesn't compute Content-MD5 of the blob, so it's computed while staging
+                                    MessageDigest md5 = newMd5Digest();
+                                    try (InputStream in = new DigestInputStream(new BufferedInputStream(new FileInputStream(file)), md5)) {
+                                        blockIds = chunker == null ? stageBlocks(in) : stageChunks(in, chunker.finish());
                                     }
+                                    String contentMd5 = BaseEncoding.base64().encode(md5.digest());
+                                    sink.commitBlockList(containerName, filePath, blockIds, contentMd5, metadata);
+                                    log.info("Upload completed {} to {} ({} blocks)", file.getAbsolutePath(), filePath, blockIds.size());
+                                    if (chunker != null) {
+                                        log.info("Reused {} of {} blocks ({} bytes) of {}", attemptReusedBlockCount, blockIds.size(), attemptReusedBytes, filePath);
+                                        reusedBlockCount += attemptReusedBlockCount;
+                                        reusedBytes += attemptReusedBytes;
+                                    }
+                                    uploadedPaths.add(filePath);
                                     return null;
                                 }
 
@@ -275,19 +548,108 @@ public class AzureBlobStorageFileOutputPlugin
             return null;
         }
 
+        private List<String> stageBlocks(InputStream in) throws IOException
+        {
+            List<String> blockIds = new ArrayList<>();
+            byte[] block = new byte[uploadBlockSize];
+            int length;
+            while ((length = ByteStreams.read(in, block, 0, block.length)) > 0) {
+                String blockId = newBlockId(blockIds.size());
+                sink.stageBlock(containerName, filePath, blockId, block, 0, length);
+                blockIds.add(blockId);
+                if (hedgingSink != null) {
+                    // the losing hedged request may still be reading the block
+                    block = new byte[uploadBlockSize];
+                }
+            }
+            return blockIds;
+        }
+
+        // stages only chunks that are not committed to the existing blob yet
+        private List<String> stageChunks(InputStream in, List<ContentDefinedChunker.Chunk> chunks) throws IOException
+        {
+            Set<String> reusable = new HashSet<>(sink.getCommittedBlockList(containerName, filePath));
+            Set<String> staged = new HashSet<>();
+            List<String> blockIds = new ArrayList<>(chunks.size());
+            byte[] block = new byte[chunker.getMaxChunkSize()];
+            long reusedCount = 0;
+            long reusedSize = 0;
+            for (ContentDefinedChunker.Chunk chunk : chunks) {
+                String blockId = chunk.getBlockId();
+                // reused chunks are read as well to compute Content-MD5 of the whole blob
+                ByteStreams.readFully(in, block, 0, chunk.getLength());
+                if (reusable.contains(blockId) || staged.contains(blockId)) {
+                    reusedCount++;
+                    reusedSize += chunk.getLength();
+                }
+                else {
+                    sink.stageBlock(containerName, filePath, blockId, block, 0, chunk.getLength());
+                    staged.add(blockId);
+                    if (hedgingSink != null) {
+                        block = new byte[chunker.getMaxChunkSize()];
+                    }
+                }
+                blockIds.add(blockId);
+            }
+            attemptReusedBlockCount = reusedCount;
+            attemptReusedBytes = reusedSize;
+            return blockIds;
+        }
+
+        private static MessageDigest newMd5Digest()
+        {
+            try {
+                return MessageDigest.getInstance("MD5");
+            }
+            catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        // All block IDs of a blob must have the same length, including uncommitted blocks left by a previous
+        // upload. Indexes are padded to 32 bytes, the same length as SHA-256 digests used as IDs of dedup chunks.
+        private static String newBlockId(int blockIndex)
+        {
+            return BaseEncoding.base64().encode(String.format("%032d", blockIndex).getBytes(StandardCharsets.UTF_8));
+        }
+
         @Override
         public void close()
         {
             closeFile();
         }
 
+        private void shutdownExecutors()
+        {
+            if (hedgingSink != null) {
+                hedgingSink.close();
+            }
+        }
+
         @Override
-        public void abort() {}
+        public void abort()
+        {
+            shutdownExecutors();
+        }
 
         @Override
         public TaskReport commit()
         {
-            return Exec.newTaskReport();
+            shutdownExecutors();
+            TaskReport report = Exec.newTaskReport();
+            report.set("paths", uploadedPaths);
+            if (dedup) {
+                report.set("reused_blocks", reusedBlockCount);
+                report.set("reused_bytes", reusedBytes);
+            }
+            if (hedgingSink != null) {
+                log.info("Task {} sent {} hedged requests for {} Put Block requests. {} hedged requests won",
+                        taskIndex, hedgingSink.getHedgedRequestCount(), hedgingSink.getRequestCount(), hedgingSink.getHedgeWinCount());
+                report.set("block_requests", hedgingSink.getRequestCount());
+                report.set("hedged_requests", hedgingSink.getHedgedRequestCount());
+                report.set("hedged_request_wins", hedgingSink.getHedgeWinCount());
+            }
+            return report;
         }
 
         @VisibleForTesting
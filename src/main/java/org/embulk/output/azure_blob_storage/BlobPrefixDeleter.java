@@ -0,0 +1,209 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Exec;
+import org.embulk.spi.util.RetryExecutor.RetryGiveupException;
+import org.embulk.spi.util.RetryExecutor.Retryable;
+import org.slf4j.Logger;
+import static org.embulk.spi.util.RetryExecutor.retryExecutor;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Deletes blobs under a prefix.
+ *
+ * Pages of the flat listing are handed to a pool of delete workers as soon as
+ * each page arrives, so deletes run while the rest of the prefix is still listed.
+ * Listing waits while twice as many deletes as workers are in flight, and stops
+ * at the end of the page during which a delete failed.
+ */
+public class BlobPrefixDeleter
+{
+    private static final Logger log = Exec.getLogger(BlobPrefixDeleter.class);
+
+    private final BlobSink sink;
+    private final String containerName;
+    private final int threads;
+    private final int maxConnectionRetry;
+
+    public BlobPrefixDeleter(BlobSink sink, String containerName, int threads, int maxConnectionRetry)
+    {
+        this.sink = sink;
+        this.containerName = containerName;
+        this.threads = threads;
+        this.maxConnectionRetry = maxConnectionRetry;
+    }
+
+    /**
+     * Deletes all blobs whose path starts with prefix except excludedPaths.
+     *
+     * @return number of deleted blobs, not counting blobs deleted by someone else in the meantime
+     */
+    public long deleteAll(String prefix, final Set<String> excludedPaths) throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("azure-blob-delete-%d")
+                .setDaemon(true)
+                .build());
+        final Deletes deletes = new Deletes(executor, threads * 2);
+        try {
+            sink.listBlobs(containerName, prefix, page -> {
+                try {
+                    deletes.submitAll(page, excludedPaths);
+                    deletes.collectCompleted();
+                }
+                catch (IOException ex) {
+                    // escapes the page consumer and is unwrapped below
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            return deletes.awaitAll();
+        }
+        catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // deletes submitted from the listing thread and their results
+    private class Deletes
+    {
+        private final CompletionService<Boolean> completion;
+        private final Semaphore permits;
+        private int pendingCount = 0;
+        private long deletedCount = 0;
+
+        Deletes(ExecutorService executor, int maxPendingDeletes)
+        {
+            this.completion = new ExecutorCompletionService<>(executor);
+            this.permits = new Semaphore(maxPendingDeletes);
+        }
+
+        void submitAll(List<String> paths, Set<String> excludedPaths) throws IOException
+        {
+            for (final String path : paths) {
+                if (excludedPaths.contains(path)) {
+                    continue;
+                }
+                try {
+                    permits.acquire();
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(ex.getMessage());
+                }
+                completion.submit(() -> {
+                    try {
+                        return deleteWithRetry(path);
+                    }
+                    finally {
+                        permits.release();
+                    }
+                });
+                pendingCount++;
+            }
+        }
+
+        void collectCompleted() throws IOException
+        {
+            Future<Boolean> done;
+            while ((done = completion.poll()) != null) {
+                collect(done);
+            }
+        }
+
+        long awaitAll() throws IOException
+        {
+            try {
+                while (pendingCount > 0) {
+                    collect(completion.take());
+                }
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(ex.getMessage());
+            }
+            return deletedCount;
+        }
+
+        private void collect(Future<Boolean> done) throws IOException
+        {
+            pendingCount--;
+            try {
+                if (done.get()) {
+                    deletedCount++;
+                }
+            }
+            catch (ExecutionException ex) {
+                Throwables.propagateIfInstanceOf(ex.getCause(), IOException.class);
+                throw Throwables.propagate(ex.getCause());
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(ex.getMessage());
+            }
+        }
+    }
+
+    private boolean deleteWithRetry(final String path) throws IOException, InterruptedException
+    {
+        try {
+            return retryExecutor()
+                    .withRetryLimit(maxConnectionRetry)
+                    .withInitialRetryWait(500)
+                    .withMaxRetryWait(30 * 1000)
+                    .runInterruptible(new Retryable<Boolean>() {
+                        @Override
+                        public Boolean call() throws IOException
+                        {
+                            return sink.deleteBlobIfExists(containerName, path);
+                        }
+
+                        @Override
+                        public boolean isRetryableException(Exception exception)
+                        {
+                            return true;
+                        }
+
+                        @Override
+                        public void onRetry(Exception exception, int retryCount, int retryLimit, int retryWait)
+                                throws RetryGiveupException
+                        {
+                            // same as uploads
+                            if (exception instanceof FileNotFoundException || exception instanceof URISyntaxException || exception instanceof ConfigException) {
+                                throw new RetryGiveupException(exception);
+                            }
+                            log.warn(String.format("Azure Blob Storage delete request of %s failed. Retrying %d/%d after %d seconds. Message: %s",
+                                    path, retryCount, retryLimit, retryWait / 1000, exception.getMessage()));
+                        }
+
+                        @Override
+                        public void onGiveup(Exception firstException, Exception lastException)
+                                throws RetryGiveupException
+                        {
+                        }
+                    });
+        }
+        catch (RetryGiveupException ex) {
+            Throwables.propagateIfInstanceOf(ex.getCause(), IOException.class);
+            throw Throwables.propagate(ex.getCause());
+        }
+    }
+}
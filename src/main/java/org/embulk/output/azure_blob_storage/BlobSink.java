@@ -0,0 +1,43 @@
+package org.embulk.output.azure_blob_storage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Destination of the block upload pipeline.
+ *
+ * Blocks are staged first and become visible only after commitBlockList(),
+ * the same as Azure Block Blobs. Implementations must be thread-safe.
+ */
+public interface BlobSink
+{
+    void createContainerIfNotExists(String containerName) throws IOException;
+
+    void stageBlock(String containerName, String path, String blockId, byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Commits blockIds as the content of the blob and replaces its metadata. A block ID may refer
+     * to a staged block or to a block committed by the previous commit of the same blob.
+     * contentMd5 is the Base64 encoded MD5 digest of the whole blob stored as its Content-MD5
+     * property, or null not to set it.
+     */
+    void commitBlockList(String containerName, String path, List<String> blockIds, String contentMd5, Map<String, String> metadata) throws IOException;
+
+    /**
+     * Returns the committed block IDs of the blob, or an empty list if the blob doesn't exist.
+     */
+    List<String> getCommittedBlockList(String containerName, String path) throws IOException;
+
+    /**
+     * Lists committed blobs whose path starts with prefix, including blobs in virtual directories.
+     * Paths are passed to pageConsumer one page at a time as soon as each page is listed.
+     */
+    void listBlobs(String containerName, String prefix, Consumer<List<String>> pageConsumer) throws IOException;
+
+    /**
+     * Deletes the blob and returns true, or returns false if the blob doesn't exist.
+     */
+    boolean deleteBlobIfExists(String containerName, String path) throws IOException;
+}
@@ -0,0 +1,143 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import org.embulk.config.ConfigException;
+import org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.EncryptionType;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Map;
+
+/**
+ * Encrypts each block independently with a random AES-256 content key per blob.
+ *
+ * An encrypted block is the IV followed by the ciphertext (and the GCM tag), so every
+ * block can be decrypted on its own. The IV is derived from the block index, which is
+ * unique because every blob has its own content key. Decryptors derive the IV from the
+ * position of the block instead of trusting the stored one, so reordered blocks don't decrypt.
+ * With GCM, the block index and whether the block is the last one are authenticated as
+ * additional data, so reordered, dropped or truncated blocks fail authentication.
+ * The content key is wrapped with the key encryption key (RFC 3394 AES Key Wrap) and
+ * stored in the blob metadata with the number of blocks.
+ */
+public class BlockEncryptor
+{
+    private static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH = 16;
+    private static final int CTR_IV_LENGTH = 16;
+
+    private final EncryptionType type;
+    private final SecretKey contentKey;
+
+    public BlockEncryptor(EncryptionType type)
+    {
+        this.type = type;
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(256, new SecureRandom());
+            this.contentKey = generator.generateKey();
+        }
+        catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Returns the number of bytes an encrypted block is longer than its plaintext.
+     */
+    public int getOverhead()
+    {
+        return type == EncryptionType.AES_GCM ? GCM_IV_LENGTH + GCM_TAG_LENGTH : CTR_IV_LENGTH;
+    }
+
+    public byte[] encrypt(long blockIndex, boolean lastBlock, byte[] data, int offset, int length) throws GeneralSecurityException
+    {
+        Cipher cipher = Cipher.getInstance(getTransformation());
+        byte[] iv;
+        AlgorithmParameterSpec spec;
+        if (type == EncryptionType.AES_GCM) {
+            iv = ByteBuffer.allocate(GCM_IV_LENGTH).putInt(0).putLong(blockIndex).array();
+            spec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
+        }
+        else {
+            // the low 8 bytes are the counter within the block
+            iv = ByteBuffer.allocate(CTR_IV_LENGTH).putLong(blockIndex).putLong(0).array();
+            spec = new IvParameterSpec(iv);
+        }
+        cipher.init(Cipher.ENCRYPT_MODE, contentKey, spec);
+        if (type == EncryptionType.AES_GCM) {
+            cipher.updateAAD(getAdditionalData(blockIndex, lastBlock));
+        }
+
+        byte[] block = new byte[iv.length + cipher.getOutputSize(length)];
+        System.arraycopy(iv, 0, block, 0, iv.length);
+        cipher.doFinal(data, offset, length, block, iv.length);
+        return block;
+    }
+
+    /**
+     * Returns the GCM additional data of a block: the 8-byte big-endian block index followed by
+     * 1 for the last block of the blob or 0 for other blocks.
+     */
+    public static byte[] getAdditionalData(long blockIndex, boolean lastBlock)
+    {
+        return ByteBuffer.allocate(9).putLong(blockIndex).put((byte) (lastBlock ? 1 : 0)).array();
+    }
+
+    /**
+     * Returns the blob metadata needed to decrypt the blob with the key encryption key.
+     */
+    public Map<String, String> getMetadata(SecretKey keyEncryptionKey, int blockSize, long blockCount) throws GeneralSecurityException
+    {
+        Cipher cipher = Cipher.getInstance("AESWrap");
+        cipher.init(Cipher.WRAP_MODE, keyEncryptionKey);
+        return ImmutableMap.<String, String>builder()
+                .put("encryption_algorithm", getTransformation())
+                .put("encryption_block_size", String.valueOf(blockSize))
+                .put("encryption_block_count", String.valueOf(blockCount))
+                .put("encryption_wrapped_key", BaseEncoding.base64().encode(cipher.wrap(contentKey)))
+                .put("encryption_key_wrap_algorithm", "AESWrap")
+                .put("encryption_key_sha256", BaseEncoding.base64().encode(
+                        MessageDigest.getInstance("SHA-256").digest(keyEncryptionKey.getEncoded())))
+                .build();
+    }
+
+    private String getTransformation()
+    {
+        return type == EncryptionType.AES_GCM ? "AES/GCM/NoPadding" : "AES/CTR/NoPadding";
+    }
+
+    /**
+     * Loads a Base64 encoded 128, 192 or 256-bit AES key.
+     */
+    public static SecretKey loadKeyEncryptionKey(Path keyFile)
+    {
+        byte[] key;
+        try {
+            String encoded = new String(Files.readAllBytes(keyFile), StandardCharsets.US_ASCII).trim();
+            key = BaseEncoding.base64().decode(encoded);
+        }
+        catch (IOException | IllegalArgumentException ex) {
+            throw new ConfigException(String.format("Failed to read a Base64 encoded AES key from %s", keyFile), ex);
+        }
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new ConfigException(String.format("Key in %s must be 128, 192 or 256 bits, but was %d bits", keyFile, key.length * 8));
+        }
+        return new SecretKeySpec(key, "AES");
+    }
+}
@@ -0,0 +1,122 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.google.common.io.BaseEncoding;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Splits a byte stream into content-defined chunks using a Gear rolling hash.
+ *
+ * A chunk boundary depends only on the last 64 bytes, so inserting or removing bytes
+ * changes the chunks around the edit only. Each chunk gets a block ID derived from its
+ * SHA-256 digest, so identical chunks get identical block IDs across runs.
+ */
+public class ContentDefinedChunker
+{
+    // fixed seed: boundaries must be the same in every run and on every JVM
+    private static final long[] GEAR = newGearTable(0x5eed0fb10bL);
+
+    private final int minSize;
+    private final int maxSize;
+    private final long mask;
+    private final MessageDigest digest;
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    private long hash = 0;
+    private int chunkLength = 0;
+
+    public static class Chunk
+    {
+        private final int length;
+        private final String blockId;
+
+        Chunk(int length, String blockId)
+        {
+            this.length = length;
+            this.blockId = blockId;
+        }
+
+        public int getLength()
+        {
+            return length;
+        }
+
+        public String getBlockId()
+        {
+            return blockId;
+        }
+    }
+
+    /**
+     * Chunks are at least targetSize / 4 bytes. After that, a chunk ends at each byte with probability
+     * 1 / 2^floor(log2(targetSize)), so chunks average about 1.25 * targetSize bytes when targetSize is
+     * a power of two. Chunks longer than maxSize are cut at maxSize.
+     */
+    public ContentDefinedChunker(int targetSize, int maxSize)
+    {
+        int bits = 31 - Integer.numberOfLeadingZeros(Math.max(targetSize, 2));
+        this.minSize = Math.max(1, targetSize / 4);
+        this.maxSize = Math.max(maxSize, minSize);
+        // use the high bits: the low bits of a Gear hash depend only on the last few bytes
+        this.mask = ((1L << bits) - 1) << (64 - bits);
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public int getMaxChunkSize()
+    {
+        return maxSize;
+    }
+
+    public void update(byte[] data, int offset, int length)
+    {
+        int start = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            chunkLength++;
+            if ((chunkLength >= minSize && (hash & mask) == 0) || chunkLength >= maxSize) {
+                digest.update(data, start, i + 1 - start);
+                cut();
+                start = i + 1;
+            }
+        }
+        digest.update(data, start, end - start);
+    }
+
+    /**
+     * Flushes the last chunk and returns all chunks in order.
+     */
+    public List<Chunk> finish()
+    {
+        if (chunkLength > 0) {
+            cut();
+        }
+        return chunks;
+    }
+
+    private void cut()
+    {
+        chunks.add(new Chunk(chunkLength, BaseEncoding.base64().encode(digest.digest())));
+        hash = 0;
+        chunkLength = 0;
+    }
+
+    private static long[] newGearTable(long seed)
+    {
+        Random random = new Random(seed);
+        long[] table = new long[256];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = random.nextLong();
+        }
+        return table;
+    }
+}
@@ -0,0 +1,66 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Encryption threads shared by all tasks in the JVM.
+ *
+ * Tasks share the threads and a limit of one block being encrypted per thread, so threads
+ * don't grow with the number of tasks and a task can't queue up unbounded blocks.
+ */
+public class EncryptionWorkerPool
+{
+    private static final Map<Integer, EncryptionWorkerPool> POOLS = new HashMap<>();
+
+    private final ExecutorService executor;
+    private final Semaphore blockPermits;
+
+    public static synchronized EncryptionWorkerPool shared(int threads)
+    {
+        EncryptionWorkerPool pool = POOLS.get(threads);
+        if (pool == null) {
+            pool = new EncryptionWorkerPool(threads);
+            POOLS.put(threads, pool);
+        }
+        return pool;
+    }
+
+    EncryptionWorkerPool(int threads)
+    {
+        // daemon threads live as long as the JVM, shared by all tasks and runs
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("azure-blob-encrypt-%d")
+                .setDaemon(true)
+                .build());
+        this.blockPermits = new Semaphore(threads);
+    }
+
+    public ExecutorService getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * Permits for blocks submitted for encryption and not yet encrypted.
+     */
+    public Semaphore getBlockPermits()
+    {
+        return blockPermits;
+    }
+
+    /**
+     * Stops the threads of a pool created by a test. Shared pools live as long as the JVM.
+     */
+    @VisibleForTesting
+    void shutdown()
+    {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,89 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencies of recent Put Block requests and the hedge budget, shared by all tasks in the JVM.
+ *
+ * A task alone rarely sends enough requests to fill the window or to earn a hedge with a small
+ * maxHedgeRatio, so all HedgingBlobSinks with the same settings record into one tracker.
+ */
+public class HedgeTracker
+{
+    private static final Map<List<Object>, HedgeTracker> TRACKERS = new HashMap<>();
+
+    private static final int LATENCY_WINDOW_SIZE = 128;
+    private static final int MIN_LATENCY_SAMPLES = 16;
+
+    private final double percentile;
+    private final double maxHedgeRatio;
+    private final long minDelayNanos;
+
+    private final long[] latencies = new long[LATENCY_WINDOW_SIZE];
+    private int latencyCount = 0;
+    private int latencyIndex = 0;
+    private long requestCount = 0;
+    private long hedgedRequestCount = 0;
+
+    public static synchronized HedgeTracker shared(double percentile, double maxHedgeRatio, long minDelayMillis)
+    {
+        List<Object> key = ImmutableList.<Object>of(percentile, maxHedgeRatio, minDelayMillis);
+        HedgeTracker tracker = TRACKERS.get(key);
+        if (tracker == null) {
+            tracker = new HedgeTracker(percentile, maxHedgeRatio, minDelayMillis);
+            TRACKERS.put(key, tracker);
+        }
+        return tracker;
+    }
+
+    HedgeTracker(double percentile, double maxHedgeRatio, long minDelayMillis)
+    {
+        this.percentile = percentile;
+        this.maxHedgeRatio = maxHedgeRatio;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+    }
+
+    /**
+     * Returns how long to wait for a request before hedging it, or -1 when hedging is not possible:
+     * not enough samples yet or no hedge budget left.
+     */
+    public synchronized long nextHedgeDelayNanos()
+    {
+        if (latencyCount < MIN_LATENCY_SAMPLES || !hasHedgeBudget()) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * latencyCount) - 1;
+        long delay = sorted[Math.max(0, Math.min(index, latencyCount - 1))];
+        return Math.max(delay, minDelayNanos);
+    }
+
+    public synchronized boolean tryAcquireHedge()
+    {
+        if (!hasHedgeBudget()) {
+            return false;
+        }
+        hedgedRequestCount++;
+        return true;
+    }
+
+    public synchronized void recordLatency(long latencyNanos)
+    {
+        requestCount++;
+        latencies[latencyIndex] = latencyNanos;
+        latencyIndex = (latencyIndex + 1) % LATENCY_WINDOW_SIZE;
+        latencyCount = Math.min(latencyCount + 1, LATENCY_WINDOW_SIZE);
+    }
+
+    private boolean hasHedgeBudget()
+    {
+        return hedgedRequestCount + 1 <= (requestCount + 1) * maxHedgeRatio;
+    }
+}
@@ -0,0 +1,193 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * BlobSink sending a duplicate Put Block request when a request is slower than
+ * the given percentile of recent requests, and using whichever finishes first.
+ *
+ * Both requests stage the same bytes with the same block ID, so the block is
+ * identical regardless of which one wins. Recent latencies and the cap of duplicate
+ * requests are kept by a HedgeTracker shared by all tasks. The counts reported by
+ * this sink cover its own requests only.
+ *
+ * The losing request may still read data after stageBlock returns, so callers must
+ * not reuse the array passed to stageBlock.
+ */
+public class HedgingBlobSink implements BlobSink
+{
+    private static final Logger log = Exec.getLogger(HedgingBlobSink.class);
+
+    private final BlobSink delegate;
+    private final HedgeTracker tracker;
+    private final ExecutorService executor;
+
+    private long requestCount = 0;
+    private long hedgedRequestCount = 0;
+    private long hedgeWinCount = 0;
+
+    public HedgingBlobSink(BlobSink delegate, HedgeTracker tracker)
+    {
+        this.delegate = delegate;
+        this.tracker = tracker;
+        this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("azure-blob-hedge-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    @Override
+    public void createContainerIfNotExists(String containerName) throws IOException
+    {
+        delegate.createContainerIfNotExists(containerName);
+    }
+
+    @Override
+    public void stageBlock(final String containerName, final String path, final String blockId, final byte[] data, final int offset, final int length) throws IOException
+    {
+        long delayNanos = tracker.nextHedgeDelayNanos();
+        long start = System.nanoTime();
+        if (delayNanos < 0) {
+            delegate.stageBlock(containerName, path, blockId, data, offset, length);
+            recordLatency(System.nanoTime() - start, false);
+            return;
+        }
+
+        Callable<Void> request = new Callable<Void>() {
+            @Override
+            public Void call() throws IOException
+            {
+                delegate.stageBlock(containerName, path, blockId, data, offset, length);
+                return null;
+            }
+        };
+
+        CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+        Future<Void> primary = completion.submit(request);
+        Future<Void> hedge = null;
+        try {
+            Future<Void> done = completion.poll(delayNanos, TimeUnit.NANOSECONDS);
+            if (done == null && tracker.tryAcquireHedge()) {
+                log.info("Put Block request of {} is slower than {} ms. Sending a hedged request", path, TimeUnit.NANOSECONDS.toMillis(delayNanos));
+                countHedge();
+                hedge = completion.submit(request);
+            }
+            if (done == null) {
+                done = completion.take();
+            }
+            try {
+                done.get();
+            }
+            catch (ExecutionException ex) {
+                if (hedge == null) {
+                    throw ex;
+                }
+                // one of the requests failed. The result of the other one decides.
+                done = completion.take();
+                done.get();
+            }
+            // latency of the block since the primary request started, so a stalled primary raises the percentile
+            // even when the hedged request wins
+            recordLatency(System.nanoTime() - start, done == hedge);
+        }
+        catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.getMessage());
+        }
+        finally {
+            // cancel() doesn't stop blocking I/O, so the losing request may still stage its block after
+            // the blob is committed. It stages the same bytes with the same block ID, so it never
+            // changes the committed content.
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        }
+    }
+
+    @Override
+    public void commitBlockList(String containerName, String path, List<String> blockIds, String contentMd5, Map<String, String> metadata) throws IOException
+    {
+        delegate.commitBlockList(containerName, path, blockIds, contentMd5, metadata);
+    }
+
+    @Override
+    public List<String> getCommittedBlockList(String containerName, String path) throws IOException
+    {
+        return delegate.getCommittedBlockList(containerName, path);
+    }
+
+    @Override
+    public void listBlobs(String containerName, String prefix, Consumer<List<String>> pageConsumer) throws IOException
+    {
+        delegate.listBlobs(containerName, prefix, pageConsumer);
+    }
+
+    @Override
+    public boolean deleteBlobIfExists(String containerName, String path) throws IOException
+    {
+        return delegate.deleteBlobIfExists(containerName, path);
+    }
+
+    public synchronized long getRequestCount()
+    {
+        return requestCount;
+    }
+
+    public synchronized long getHedgedRequestCount()
+    {
+        return hedgedRequestCount;
+    }
+
+    public synchronized long getHedgeWinCount()
+    {
+        return hedgeWinCount;
+    }
+
+    public void close()
+    {
+        executor.shutdownNow();
+    }
+
+    private synchronized void countHedge()
+    {
+        hedgedRequestCount++;
+    }
+
+    private void recordLatency(long latencyNanos, boolean hedgeWon)
+    {
+        tracker.recordLatency(latencyNanos);
+        synchronized (this) {
+            requestCount++;
+            if (hedgeWon) {
+                hedgeWinCount++;
+            }
+        }
+    }
+}
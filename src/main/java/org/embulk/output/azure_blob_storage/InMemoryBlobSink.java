@@ -0,0 +1,179 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * BlobSink keeping blobs on the heap.
+ *
+ * All tasks running in the same JVM share one instance, so committed blobs can be
+ * inspected after a run through getBlob().
+ */
+public class InMemoryBlobSink implements BlobSink
+{
+    private static final InMemoryBlobSink SHARED = new InMemoryBlobSink();
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Blob>> blobs = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentMap<String, byte[]>> stagedBlocks = new ConcurrentHashMap<>();
+
+    // committed blocks are kept per blob so that the next commit can reuse them like Azure does
+    private static class Blob
+    {
+        private final List<String> blockIds;
+        private final Map<String, byte[]> blocks;
+        private final String contentMd5;
+        private final Map<String, String> metadata;
+
+        Blob(List<String> blockIds, Map<String, byte[]> blocks, String contentMd5, Map<String, String> metadata)
+        {
+            this.blockIds = blockIds;
+            this.blocks = blocks;
+            this.contentMd5 = contentMd5;
+            this.metadata = metadata;
+        }
+    }
+
+    public static InMemoryBlobSink shared()
+    {
+        return SHARED;
+    }
+
+    @Override
+    public void createContainerIfNotExists(String containerName)
+    {
+        blobs.putIfAbsent(containerName, new ConcurrentHashMap<String, Blob>());
+    }
+
+    @Override
+    public void stageBlock(String containerName, String path, String blockId, byte[] data, int offset, int length) throws IOException
+    {
+        final Map<String, Blob> container = getContainer(containerName);
+        final byte[] block = Arrays.copyOfRange(data, offset, offset + length);
+        // commitBlockList() publishes the blob before it removes the staged blocks, so a late duplicate
+        // of a committed block, e.g. a losing hedged request, is ignored instead of being staged forever
+        stagedBlocks.compute(key(containerName, path), (key, staged) -> {
+            Blob committed = container.get(path);
+            if (committed != null && Arrays.equals(committed.blocks.get(blockId), block)) {
+                return staged;
+            }
+            ConcurrentMap<String, byte[]> blocks = staged == null ? new ConcurrentHashMap<String, byte[]>() : staged;
+            blocks.put(blockId, block);
+            return blocks;
+        });
+    }
+
+    @Override
+    public void commitBlockList(String containerName, String path, List<String> blockIds, String contentMd5, Map<String, String> metadata) throws IOException
+    {
+        Map<String, Blob> container = getContainer(containerName);
+        Map<String, byte[]> staged = stagedBlocks.get(key(containerName, path));
+        Blob committed = container.get(path);
+
+        Map<String, byte[]> blocks = new HashMap<>();
+        for (String blockId : blockIds) {
+            byte[] block = staged == null ? null : staged.get(blockId);
+            if (block == null && committed != null) {
+                block = committed.blocks.get(blockId);
+            }
+            if (block == null) {
+                throw new IOException(String.format("Block %s of %s/%s is not staged", blockId, containerName, path));
+            }
+            blocks.put(blockId, block);
+        }
+        container.put(path, new Blob(new ArrayList<>(blockIds), blocks, contentMd5, new HashMap<>(metadata)));
+        stagedBlocks.remove(key(containerName, path));
+    }
+
+    @Override
+    public List<String> getCommittedBlockList(String containerName, String path) throws IOException
+    {
+        Blob blob = getContainer(containerName).get(path);
+        return blob == null ? Collections.<String>emptyList() : Collections.unmodifiableList(blob.blockIds);
+    }
+
+    @Override
+    public void listBlobs(String containerName, String prefix, Consumer<List<String>> pageConsumer) throws IOException
+    {
+        List<String> paths = new ArrayList<>();
+        for (String path : getContainer(containerName).keySet()) {
+            if (path.startsWith(prefix)) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+        pageConsumer.accept(paths);
+    }
+
+    @Override
+    public boolean deleteBlobIfExists(String containerName, String path) throws IOException
+    {
+        return getContainer(containerName).remove(path) != null;
+    }
+
+    public byte[] getBlob(String containerName, String path)
+    {
+        Map<String, Blob> container = blobs.get(containerName);
+        Blob blob = container == null ? null : container.get(path);
+        if (blob == null) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (String blockId : blob.blockIds) {
+            byte[] block = blob.blocks.get(blockId);
+            out.write(block, 0, block.length);
+        }
+        return out.toByteArray();
+    }
+
+    public Map<String, String> getBlobMetadata(String containerName, String path)
+    {
+        Map<String, Blob> container = blobs.get(containerName);
+        Blob blob = container == null ? null : container.get(path);
+        return blob == null ? null : Collections.unmodifiableMap(blob.metadata);
+    }
+
+    public String getBlobContentMd5(String containerName, String path)
+    {
+        Map<String, Blob> container = blobs.get(containerName);
+        Blob blob = container == null ? null : container.get(path);
+        return blob == null ? null : blob.contentMd5;
+    }
+
+    @VisibleForTesting
+    int getStagedBlobCount()
+    {
+        return stagedBlocks.size();
+    }
+
+    public void clear()
+    {
+        blobs.clear();
+        stagedBlocks.clear();
+    }
+
+    private Map<String, Blob> getContainer(String containerName) throws IOException
+    {
+        Map<String, Blob> container = blobs.get(containerName);
+        if (container == null) {
+            throw new FileNotFoundException(String.format("Container %s doesn't exist", containerName));
+        }
+        return container;
+    }
+
+    private static String key(String containerName, String path)
+    {
+        return containerName + "/" + path;
+    }
+}
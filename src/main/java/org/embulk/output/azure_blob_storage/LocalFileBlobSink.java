@@ -0,0 +1,293 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * BlobSink storing blobs under a local directory.
+ *
+ * Blobs are written to {@code <root>/<container>/<path>}. Staged and committed blocks,
+ * the committed block list and metadata are kept under {@code <root>/.blocks/<container>/<sha256(path)>/},
+ * so blob paths of any length fit in a single directory name. Every request sleeps for the
+ * configured latency. Staged bytes of all sinks under the same root directory share the
+ * configured bandwidth, like tasks and hedged requests sharing one network link.
+ */
+public class LocalFileBlobSink implements BlobSink
+{
+    private static final String BLOCK_DIRECTORY = ".blocks";
+    private static final String BLOCK_LIST_FILE = "blocklist"; // file names of this directory never conflict with hex encoded block IDs
+    private static final String METADATA_FILE = "metadata";
+    private static final String CONTENT_MD5_FILE = "contentmd5";
+    private static final int LIST_PAGE_SIZE = 1000;
+
+    private static final Map<Path, RateLimiter> RATE_LIMITERS = new HashMap<>();
+
+    private final Path root;
+    private final long latencyMillis;
+    private final RateLimiter rateLimiter; // null when bandwidth is unlimited
+
+    public LocalFileBlobSink(Path root, long latencyMillis, long bytesPerSecond)
+    {
+        this.root = root;
+        this.latencyMillis = latencyMillis;
+        this.rateLimiter = bytesPerSecond > 0 ? getRateLimiter(root, bytesPerSecond) : null;
+    }
+
+    private static synchronized RateLimiter getRateLimiter(Path root, long bytesPerSecond)
+    {
+        Path key = root.toAbsolutePath().normalize();
+        RateLimiter rateLimiter = RATE_LIMITERS.get(key);
+        if (rateLimiter == null) {
+            rateLimiter = RateLimiter.create(bytesPerSecond);
+            RATE_LIMITERS.put(key, rateLimiter);
+        }
+        else if (rateLimiter.getRate() != bytesPerSecond) {
+            rateLimiter.setRate(bytesPerSecond);
+        }
+        return rateLimiter;
+    }
+
+    @Override
+    public void createContainerIfNotExists(String containerName) throws IOException
+    {
+        simulateTransfer(0);
+        Files.createDirectories(root.resolve(containerName));
+    }
+
+    @Override
+    public void stageBlock(String containerName, String path, String blockId, byte[] data, int offset, int length) throws IOException
+    {
+        simulateTransfer(length);
+        getContainerDirectory(containerName);
+        Path blockDir = getBlockDirectory(containerName, path);
+        Files.createDirectories(blockDir);
+        if (isSameBlock(blockDir.resolve(encode(blockId)), data, offset, length)) {
+            // a late duplicate of a block, e.g. a losing hedged request, leaves the block as is
+            return;
+        }
+
+        // write to a temporary file first so that concurrent requests for the same block never see a partial block
+        Path tmp = Files.createTempFile(blockDir, "staging", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                out.write(data, offset, length);
+            }
+            Files.move(tmp, blockDir.resolve(encode(blockId)), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public void commitBlockList(String containerName, String path, List<String> blockIds, String contentMd5, Map<String, String> metadata) throws IOException
+    {
+        simulateTransfer(0);
+        Path target = getBlobPath(containerName, path);
+        Path blockDir = getBlockDirectory(containerName, path);
+        Files.createDirectories(target.getParent());
+
+        Path tmp = Files.createTempFile(target.getParent(), "commit", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                for (String blockId : blockIds) {
+                    Path block = blockDir.resolve(encode(blockId));
+                    if (!Files.exists(block)) {
+                        throw new IOException(String.format("Block %s of %s/%s is not staged", blockId, containerName, path));
+                    }
+                    Files.copy(block, out);
+                }
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+
+        // keep the committed blocks only, the same as Azure discards uncommitted blocks on commit
+        Files.createDirectories(blockDir);
+        Files.write(blockDir.resolve(BLOCK_LIST_FILE), blockIds, StandardCharsets.UTF_8);
+        Properties properties = new Properties();
+        properties.putAll(metadata);
+        try (OutputStream out = Files.newOutputStream(blockDir.resolve(METADATA_FILE))) {
+            properties.store(out, null);
+        }
+        if (contentMd5 != null) {
+            Files.write(blockDir.resolve(CONTENT_MD5_FILE), contentMd5.getBytes(StandardCharsets.US_ASCII));
+        }
+        Set<String> committed = new HashSet<>();
+        for (String blockId : blockIds) {
+            committed.add(encode(blockId));
+        }
+        committed.add(BLOCK_LIST_FILE);
+        committed.add(METADATA_FILE);
+        if (contentMd5 != null) {
+            committed.add(CONTENT_MD5_FILE);
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(blockDir)) {
+            for (Path file : files) {
+                if (!committed.contains(file.getFileName().toString())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<String> getCommittedBlockList(String containerName, String path) throws IOException
+    {
+        simulateTransfer(0);
+        Path blockList = getBlockDirectory(containerName, path).resolve(BLOCK_LIST_FILE);
+        if (!Files.exists(getBlobPath(containerName, path)) || !Files.exists(blockList)) {
+            return Collections.emptyList();
+        }
+        return Files.readAllLines(blockList, StandardCharsets.UTF_8);
+    }
+
+    public Map<String, String> getBlobMetadata(String containerName, String path) throws IOException
+    {
+        Path metadataFile = getBlockDirectory(containerName, path).resolve(METADATA_FILE);
+        if (!Files.exists(getBlobPath(containerName, path)) || !Files.exists(metadataFile)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(metadataFile)) {
+            properties.load(in);
+        }
+        Map<String, String> metadata = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            metadata.put(name, properties.getProperty(name));
+        }
+        return metadata;
+    }
+
+    public String getBlobContentMd5(String containerName, String path) throws IOException
+    {
+        Path contentMd5File = getBlockDirectory(containerName, path).resolve(CONTENT_MD5_FILE);
+        if (!Files.exists(getBlobPath(containerName, path)) || !Files.exists(contentMd5File)) {
+            return null;
+        }
+        return new String(Files.readAllBytes(contentMd5File), StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public void listBlobs(String containerName, String prefix, Consumer<List<String>> pageConsumer) throws IOException
+    {
+        final Path dir = getContainerDirectory(containerName);
+        List<String> paths;
+        try (Stream<Path> files = Files.walk(dir)) {
+            paths = files.filter(Files::isRegularFile)
+                    .map(file -> dir.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/"))
+                    .filter(path -> path.startsWith(prefix))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (int i = 0; i < paths.size(); i += LIST_PAGE_SIZE) {
+            simulateTransfer(0);
+            pageConsumer.accept(new ArrayList<>(paths.subList(i, Math.min(i + LIST_PAGE_SIZE, paths.size()))));
+        }
+    }
+
+    @Override
+    public boolean deleteBlobIfExists(String containerName, String path) throws IOException
+    {
+        simulateTransfer(0);
+        boolean deleted = Files.deleteIfExists(getBlobPath(containerName, path));
+        deleteDirectory(getBlockDirectory(containerName, path));
+        return deleted;
+    }
+
+    private Path getContainerDirectory(String containerName) throws IOException
+    {
+        Path dir = root.resolve(containerName);
+        if (!Files.isDirectory(dir)) {
+            throw new FileNotFoundException(String.format("Container %s doesn't exist in %s", containerName, root));
+        }
+        return dir;
+    }
+
+    private Path getBlobPath(String containerName, String path) throws IOException
+    {
+        Path dir = getContainerDirectory(containerName);
+        Path blob = dir.resolve(path).normalize();
+        if (!blob.startsWith(dir) || blob.equals(dir)) {
+            throw new IOException(String.format("Invalid blob path %s", path));
+        }
+        return blob;
+    }
+
+    private Path getBlockDirectory(String containerName, String path)
+    {
+        // hex encoded path would exceed the 255 bytes file name limit for paths longer than 127 bytes
+        return root.resolve(BLOCK_DIRECTORY).resolve(containerName)
+                .resolve(Hashing.sha256().hashString(path, StandardCharsets.UTF_8).toString());
+    }
+
+    // block IDs are at most 64 bytes, so hex encoded IDs fit in a file name
+    private static String encode(String name)
+    {
+        return BaseEncoding.base16().encode(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean isSameBlock(Path block, byte[] data, int offset, int length) throws IOException
+    {
+        if (!Files.exists(block) || Files.size(block) != length) {
+            return false;
+        }
+        return Arrays.equals(Files.readAllBytes(block), Arrays.copyOfRange(data, offset, offset + length));
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException
+    {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    private void simulateTransfer(int bytes) throws IOException
+    {
+        if (rateLimiter != null && bytes > 0) {
+            // a request waits for the bytes of earlier requests, so the total rate of the directory is bounded
+            rateLimiter.acquire(bytes);
+        }
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(ex.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package org.embulk.output.azure_blob_storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * OutputStream splitting bytes into blocks of blockSize and encrypting them on a shared pool.
+ *
+ * A full block is submitted only when more bytes are written, so that the last block is
+ * known when it's encrypted. An empty stream still produces one empty last block.
+ *
+ * Encrypted blocks are written to the underlying stream in order. A block holds a permit of the pool
+ * only until it's encrypted, so blocks being encrypted are bounded across all streams sharing the pool
+ * and a stream that stops writing doesn't hold permits other streams need. Encrypted blocks waiting
+ * to be written are bounded per stream.
+ */
+public class ParallelEncryptingOutputStream extends OutputStream
+{
+    private static final int MAX_ENCRYPTED_BLOCKS = 4;
+
+    private final OutputStream out;
+    private final BlockEncryptor encryptor;
+    private final int blockSize;
+    private final ExecutorService executor;
+    private final Semaphore blockPermits;
+    private final Queue<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+
+    private byte[] buffer;
+    private int bufferLength = 0;
+    private long blockIndex = 0;
+    private boolean closed = false;
+
+    public ParallelEncryptingOutputStream(OutputStream out, BlockEncryptor encryptor, int blockSize, EncryptionWorkerPool pool)
+    {
+        this.out = out;
+        this.encryptor = encryptor;
+        this.blockSize = blockSize;
+        this.executor = pool.getExecutor();
+        this.blockPermits = pool.getBlockPermits();
+        this.buffer = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        writeEncryptedBlocks();
+        while (length > 0) {
+            if (bufferLength == blockSize) {
+                submitBlock(false);
+            }
+            int size = Math.min(length, blockSize - bufferLength);
+            System.arraycopy(data, offset, buffer, bufferLength, size);
+            bufferLength += size;
+            offset += size;
+            length -= size;
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (bufferLength > 0 || blockIndex == 0) {
+                submitBlock(true);
+            }
+            while (!pendingBlocks.isEmpty()) {
+                writeNextBlock();
+            }
+        }
+        finally {
+            for (Future<byte[]> pending : pendingBlocks) {
+                // releases the permit unless the block is already encrypted
+                pending.cancel(true);
+            }
+            pendingBlocks.clear();
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the number of blocks written. Valid after close().
+     */
+    public long getBlockCount()
+    {
+        return blockIndex;
+    }
+
+    private void submitBlock(final boolean lastBlock) throws IOException
+    {
+        writeEncryptedBlocks();
+        while (countEncryptedBlocks() >= MAX_ENCRYPTED_BLOCKS) {
+            // the head isn't encrypted yet, otherwise it would have been written
+            writeNextBlock();
+        }
+        try {
+            blockPermits.acquire();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.getMessage());
+        }
+        final byte[] block = buffer;
+        final int length = bufferLength;
+        final long index = blockIndex++;
+        EncryptingBlock encrypting = new EncryptingBlock(() -> encryptor.encrypt(index, lastBlock, block, 0, length));
+        pendingBlocks.add(encrypting);
+        executor.execute(encrypting);
+        buffer = new byte[blockSize];
+        bufferLength = 0;
+    }
+
+    private int countEncryptedBlocks()
+    {
+        int count = 0;
+        for (Future<byte[]> pending : pendingBlocks) {
+            if (pending.isDone()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void writeEncryptedBlocks() throws IOException
+    {
+        while (!pendingBlocks.isEmpty() && pendingBlocks.peek().isDone()) {
+            writeNextBlock();
+        }
+    }
+
+    private void writeNextBlock() throws IOException
+    {
+        Future<byte[]> pending = pendingBlocks.remove();
+        try {
+            out.write(pending.get());
+        }
+        catch (ExecutionException ex) {
+            throw new IOException("Failed to encrypt a block", ex.getCause());
+        }
+        catch (InterruptedException ex) {
+            pending.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ex.getMessage());
+        }
+    }
+
+    // done() runs exactly once, when the block is encrypted, fails or is cancelled
+    private class EncryptingBlock extends FutureTask<byte[]>
+    {
+        EncryptingBlock(Callable<byte[]> encryption)
+        {
+            super(encryption);
+        }
+
+        @Override
+        protected void done()
+        {
+            blockPermits.release();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.embulk.output.azure_blob_storage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Forwards every request to another sink. Tests override single methods to inject stalls and failures.
+ */
+class ForwardingBlobSink implements BlobSink
+{
+    private final BlobSink delegate;
+
+    ForwardingBlobSink(BlobSink delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void createContainerIfNotExists(String containerName) throws IOException
+    {
+        delegate.createContainerIfNotExists(containerName);
+    }
+
+    @Override
+    public void stageBlock(String containerName, String path, String blockId, byte[] data, int offset, int length) throws IOException
+    {
+        delegate.stageBlock(containerName, path, blockId, data, offset, length);
+    }
+
+    @Override
+    public void commitBlockList(String containerName, String path, List<String> blockIds, String contentMd5, Map<String, String> metadata) throws IOException
+    {
+        delegate.commitBlockList(containerName, path, blockIds, contentMd5, metadata);
+    }
+
+    @Override
+    public List<String> getCommittedBlockList(String containerName, String path) throws IOException
+    {
+        return delegate.getCommittedBlockList(containerName, path);
+    }
+
+    @Override
+    public void listBlobs(String containerName, String prefix, Consumer<List<String>> pageConsumer) throws IOException
+    {
+        delegate.listBlobs(containerName, prefix, pageConsumer);
+    }
+
+    @Override
+    public boolean deleteBlobIfExists(String containerName, String path) throws IOException
+    {
+        return delegate.deleteBlobIfExists(containerName, path);
+    }
+}
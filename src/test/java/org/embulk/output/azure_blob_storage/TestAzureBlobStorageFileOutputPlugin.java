@@ -105,6 +105,8 @@ public class TestAzureBlobStorageFileOutputPlugin
         assertEquals(AZURE_ACCOUNT_KEY, task.getAccountKey());
         assertEquals(AZURE_CONTAINER, task.getContainer());
         assertEquals(10, task.getMaxConnectionRetry());
+        assertEquals(4194304, task.getBlockSize());
+        assertEquals(AzureBlobStorageFileOutputPlugin.SinkType.AZURE, task.getSink());
     }
 
     @Test
@@ -0,0 +1,272 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.AzureFileOutput;
+import org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.PluginTask;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Exec;
+import org.embulk.spi.FileOutputPlugin;
+import org.embulk.spi.TransactionalFileOutput;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import javax.crypto.SecretKey;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs AzureFileOutput end to end against the memory sink, without Azure.
+ */
+public class TestAzureFileOutputWithInMemorySink
+{
+    private static final String CONTAINER = "my-container";
+    private static final int BLOCK_SIZE = 1000;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private AzureBlobStorageFileOutputPlugin plugin;
+    private InMemoryBlobSink sink;
+
+    @Before
+    public void createResources()
+    {
+        plugin = new AzureBlobStorageFileOutputPlugin();
+        sink = InMemoryBlobSink.shared();
+        sink.clear();
+    }
+
+    @Test
+    public void testUploadsFileAsBlocks() throws Exception
+    {
+        byte[] file0 = randomBytes(BLOCK_SIZE * 2 + 500, 0);
+        byte[] file1 = randomBytes(BLOCK_SIZE / 2, 1);
+        List<TaskReport> reports = run(config(), file0, file1);
+
+        assertArrayEquals(file0, sink.getBlob(CONTAINER, "out/sample_000.00.csv"));
+        assertArrayEquals(file1, sink.getBlob(CONTAINER, "out/sample_001.00.csv"));
+        assertEquals(3, sink.getCommittedBlockList(CONTAINER, "out/sample_000.00.csv").size());
+        assertEquals(1, sink.getCommittedBlockList(CONTAINER, "out/sample_001.00.csv").size());
+        assertEquals(md5(file0), sink.getBlobContentMd5(CONTAINER, "out/sample_000.00.csv"));
+        assertEquals(ImmutableList.of("out/sample_000.00.csv"), Arrays.asList(reports.get(0).get(String[].class, "paths")));
+        assertEquals(ImmutableList.of("out/sample_001.00.csv"), Arrays.asList(reports.get(1).get(String[].class, "paths")));
+    }
+
+    @Test
+    public void testUploadsEmptyFile() throws Exception
+    {
+        run(config(), new byte[0]);
+
+        assertArrayEquals(new byte[0], sink.getBlob(CONTAINER, "out/sample_000.00.csv"));
+        assertEquals(md5(new byte[0]), sink.getBlobContentMd5(CONTAINER, "out/sample_000.00.csv"));
+    }
+
+    @Test
+    public void testDedupReusesCommittedBlocks() throws Exception
+    {
+        byte[] data = randomBytes(BLOCK_SIZE * 20, 0);
+        TaskReport first = run(config().set("dedup", true), data).get(0);
+        List<String> firstBlockIds = sink.getCommittedBlockList(CONTAINER, "out/sample_000.00.csv");
+
+        // change a few bytes in the middle of the file
+        byte[] changed = data.clone();
+        for (int i = 0; i < 10; i++) {
+            changed[BLOCK_SIZE * 10 + i] ^= 1;
+        }
+        TaskReport second = run(config().set("dedup", true), changed).get(0);
+        List<String> secondBlockIds = sink.getCommittedBlockList(CONTAINER, "out/sample_000.00.csv");
+
+        assertArrayEquals(changed, sink.getBlob(CONTAINER, "out/sample_000.00.csv"));
+        assertEquals(md5(changed), sink.getBlobContentMd5(CONTAINER, "out/sample_000.00.csv"));
+        assertEquals(0L, (long) first.get(Long.class, "reused_blocks"));
+        long reusedBlocks = second.get(Long.class, "reused_blocks");
+        assertTrue(reusedBlocks >= secondBlockIds.size() - 3);
+        assertTrue(reusedBlocks < secondBlockIds.size());
+        assertTrue(second.get(Long.class, "reused_bytes") >= data.length - BLOCK_SIZE * 4 * 3);
+
+        // IDs of dedup chunks and of indexed blocks have the same length
+        List<String> indexedBlockIds = new ArrayList<>(firstBlockIds);
+        run(config(), data);
+        indexedBlockIds.addAll(sink.getCommittedBlockList(CONTAINER, "out/sample_000.00.csv"));
+        for (String blockId : indexedBlockIds) {
+            assertEquals(44, blockId.length());
+        }
+    }
+
+    @Test
+    public void testDedupCountsReusedBlocksOfCommittedAttemptOnly() throws Exception
+    {
+        byte[] data = randomBytes(BLOCK_SIZE * 20, 0);
+        run(config().set("dedup", true), data);
+        int blockCount = sink.getCommittedBlockList(CONTAINER, "out/sample_000.00.csv").size();
+
+        // the first commit fails and the upload is retried
+        final AtomicInteger commits = new AtomicInteger();
+        InMemoryBlobSink failingSink = new InMemoryBlobSink()
+        {
+            @Override
+            public void commitBlockList(String containerName, String path, List<String> blockIds, String contentMd5, Map<String, String> metadata) throws IOException
+            {
+                if (commits.getAndIncrement() == 0) {
+                    throw new IOException("commit failed");
+                }
+                sink.commitBlockList(containerName, path, blockIds, contentMd5, metadata);
+            }
+
+            @Override
+            public List<String> getCommittedBlockList(String containerName, String path) throws IOException
+            {
+                return sink.getCommittedBlockList(containerName, path);
+            }
+        };
+        failingSink.createContainerIfNotExists(CONTAINER);
+        PluginTask task = config().set("dedup", true).set("max_connection_retry", 1).loadConfig(PluginTask.class);
+        AzureFileOutput output = new AzureFileOutput(failingSink, task, 0);
+        output.nextFile();
+        output.add(Buffer.wrap(data));
+        output.finish();
+        TaskReport report = output.commit();
+
+        assertEquals(2, commits.get());
+        assertEquals((long) blockCount, (long) report.get(Long.class, "reused_blocks"));
+        assertEquals((long) data.length, (long) report.get(Long.class, "reused_bytes"));
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testDedupWithDeletePrefixBeforeRun()
+    {
+        run(config().set("dedup", true).set("delete_prefix_before_run", true), randomBytes(10, 0));
+    }
+
+    @Test
+    public void testEncryptsBlocksAlignedToUploadedBlocks() throws Exception
+    {
+        byte[] kek = randomBytes(32, 0);
+        Path keyFile = tmp.newFile().toPath();
+        Files.write(keyFile, BaseEncoding.base64().encode(kek).getBytes(StandardCharsets.US_ASCII));
+        SecretKey keyEncryptionKey = BlockEncryptor.loadKeyEncryptionKey(keyFile);
+
+        byte[] data = randomBytes(BLOCK_SIZE * 5 + 10, 1);
+        run(config().set("encryption", "aes_gcm").set("encryption_key_file", keyFile.toString()).set("encryption_threads", 2), data);
+
+        // every uploaded block is exactly one encrypted block: IV, ciphertext and tag
+        int overhead = 12 + 16;
+        byte[] blob = sink.getBlob(CONTAINER, "out/sample_000.00.csv");
+        Map<String, String> metadata = sink.getBlobMetadata(CONTAINER, "out/sample_000.00.csv");
+        assertEquals(6, sink.getCommittedBlockList(CONTAINER, "out/sample_000.00.csv").size());
+        assertEquals((BLOCK_SIZE + overhead) * 5 + 10 + overhead, blob.length);
+        assertEquals("6", metadata.get("encryption_block_count"));
+        assertEquals(md5(blob), sink.getBlobContentMd5(CONTAINER, "out/sample_000.00.csv"));
+        assertArrayEquals(data, TestBlockEncryptor.decrypt(blob, metadata, keyEncryptionKey, overhead));
+    }
+
+    @Test
+    public void testDeletesStaleBlobsAfterCommit() throws Exception
+    {
+        run(config(), randomBytes(10, 0), randomBytes(10, 1), randomBytes(10, 2));
+        sink.createContainerIfNotExists(CONTAINER);
+        sink.stageBlock(CONTAINER, "other/a.csv", "AAAA", new byte[1], 0, 1);
+        sink.commitBlockList(CONTAINER, "other/a.csv", ImmutableList.of("AAAA"), null, ImmutableMap.<String, String>of());
+
+        // the second run has fewer tasks, so part files of tasks 1 and 2 are stale
+        run(config().set("delete_stale_after_commit", true), randomBytes(10, 3));
+
+        assertEquals(ImmutableList.of("other/a.csv", "out/sample_000.00.csv"), listBlobs());
+        assertArrayEquals(randomBytes(10, 3), sink.getBlob(CONTAINER, "out/sample_000.00.csv"));
+    }
+
+    @Test
+    public void testDeletesPrefixBeforeRun() throws Exception
+    {
+        run(config(), randomBytes(10, 0), randomBytes(10, 1));
+
+        run(config().set("delete_prefix_before_run", true), randomBytes(10, 2));
+
+        assertEquals(ImmutableList.of("out/sample_000.00.csv"), listBlobs());
+    }
+
+    private List<String> listBlobs() throws Exception
+    {
+        final List<String> paths = new ArrayList<>();
+        sink.listBlobs(CONTAINER, "", page -> paths.addAll(page));
+        return paths;
+    }
+
+    private ConfigSource config()
+    {
+        return Exec.newConfigSource()
+                .set("type", "azure_blob_storage")
+                .set("sink", "memory")
+                .set("container", CONTAINER)
+                .set("path_prefix", "out/sample_")
+                .set("file_ext", "csv")
+                .set("block_size", BLOCK_SIZE)
+                .set("max_connection_retry", 0);
+    }
+
+    // runs one task per file and cleans up the transaction like Embulk does
+    private List<TaskReport> run(ConfigSource config, final byte[]... files)
+    {
+        final List<TaskReport> reports = new ArrayList<>();
+        final List<TaskSource> taskSources = new ArrayList<>();
+        plugin.transaction(config, files.length, new FileOutputPlugin.Control()
+        {
+            @Override
+            public List<TaskReport> run(TaskSource taskSource)
+            {
+                taskSources.add(taskSource);
+                for (int i = 0; i < files.length; i++) {
+                    TransactionalFileOutput output = plugin.open(taskSource, i);
+                    output.nextFile();
+                    // write in pieces not aligned to blocks
+                    for (int offset = 0; offset < files[i].length; offset += 333) {
+                        output.add(Buffer.wrap(Arrays.copyOfRange(files[i], offset, Math.min(offset + 333, files[i].length))));
+                    }
+                    output.finish();
+                    reports.add(output.commit());
+                }
+                return reports;
+            }
+        });
+        plugin.cleanup(taskSources.get(0), files.length, reports);
+        return reports;
+    }
+
+    private static byte[] randomBytes(int length, long seed)
+    {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static String md5(byte[] data)
+    {
+        return BaseEncoding.base64().encode(Hashing.md5().hashBytes(data).asBytes());
+    }
+}
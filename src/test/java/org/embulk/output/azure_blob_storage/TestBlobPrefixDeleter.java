@@ -0,0 +1,124 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.embulk.EmbulkTestRuntime;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class TestBlobPrefixDeleter
+{
+    private static final String CONTAINER = "my-container";
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private InMemoryBlobSink memorySink;
+
+    @Before
+    public void createResources() throws IOException
+    {
+        memorySink = new InMemoryBlobSink();
+        memorySink.createContainerIfNotExists(CONTAINER);
+    }
+
+    @Test
+    public void testKeepsExcludedPaths() throws Exception
+    {
+        for (int i = 0; i < 100; i++) {
+            upload(memorySink, String.format("logs/sample_%03d.00.csv", i));
+        }
+        upload(memorySink, "other/sample_000.00.csv");
+
+        BlobPrefixDeleter deleter = new BlobPrefixDeleter(memorySink, CONTAINER, 4, 0);
+        long deleted = deleter.deleteAll("logs/", ImmutableSet.of("logs/sample_000.00.csv"));
+
+        assertEquals(99, deleted);
+        final List<String> paths = new ArrayList<>();
+        memorySink.listBlobs(CONTAINER, "", page -> paths.addAll(page));
+        assertEquals(ImmutableList.of("logs/sample_000.00.csv", "other/sample_000.00.csv"), paths);
+    }
+
+    @Test
+    public void testCountsOnlyExistingBlobs() throws Exception
+    {
+        for (int i = 0; i < 10; i++) {
+            upload(memorySink, String.format("logs/sample_%03d.00.csv", i));
+        }
+        BlobSink sink = new ForwardingBlobSink(memorySink)
+        {
+            @Override
+            public void listBlobs(String containerName, String prefix, Consumer<List<String>> pageConsumer) throws IOException
+            {
+                super.listBlobs(containerName, prefix, pageConsumer);
+                // deleted by someone else after listed
+                pageConsumer.accept(ImmutableList.of("logs/deleted.csv"));
+            }
+        };
+
+        assertEquals(10, new BlobPrefixDeleter(sink, CONTAINER, 4, 0).deleteAll("logs/", ImmutableSet.<String>of()));
+    }
+
+    @Test
+    public void testStopsListingAfterFailure() throws Exception
+    {
+        final AtomicInteger listedPages = new AtomicInteger();
+        final AtomicInteger failedRequests = new AtomicInteger();
+        BlobSink sink = new ForwardingBlobSink(memorySink)
+        {
+            @Override
+            public void listBlobs(String containerName, String prefix, Consumer<List<String>> pageConsumer)
+            {
+                for (int page = 0; page < 100; page++) {
+                    listedPages.incrementAndGet();
+                    List<String> paths = new ArrayList<>();
+                    for (int i = 0; i < 10; i++) {
+                        paths.add(String.format("logs/sample_%03d.%02d.csv", page, i));
+                    }
+                    pageConsumer.accept(paths);
+                }
+            }
+
+            @Override
+            public boolean deleteBlobIfExists(String containerName, String path) throws IOException
+            {
+                if (path.equals("logs/sample_000.00.csv")) {
+                    failedRequests.incrementAndGet();
+                    throw new FileNotFoundException("container is deleted");
+                }
+                return super.deleteBlobIfExists(containerName, path);
+            }
+        };
+
+        try {
+            new BlobPrefixDeleter(sink, CONTAINER, 1, 3).deleteAll("logs/", ImmutableSet.<String>of());
+            fail();
+        }
+        catch (FileNotFoundException ex) {
+            // FileNotFoundException isn't retried
+            assertEquals(1, failedRequests.get());
+            assertTrue(listedPages.get() < 100);
+        }
+    }
+
+    private static void upload(BlobSink sink, String path) throws IOException
+    {
+        byte[] data = "hello".getBytes(StandardCharsets.UTF_8);
+        sink.stageBlock(CONTAINER, path, "MDAwMDAwMDA=", data, 0, data.length);
+        sink.commitBlockList(CONTAINER, path, ImmutableList.of("MDAwMDAwMDA="), null, ImmutableMap.<String, String>of());
+    }
+}
@@ -0,0 +1,228 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.embulk.EmbulkTestRuntime;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class TestBlobSink
+{
+    private static final String CONTAINER = "my-container";
+    private static final Map<String, String> NO_METADATA = ImmutableMap.of();
+    private static final String HELLO_WORLD_MD5 = "5NfxtO0uQtFYmPSyewGdpA=="; // MD5 of "hello, world"
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path root;
+    private LocalFileBlobSink localSink;
+    private InMemoryBlobSink memorySink;
+
+    @Before
+    public void createResources() throws IOException
+    {
+        root = tmp.newFolder("sink").toPath();
+        localSink = new LocalFileBlobSink(root, 0, 0);
+        memorySink = new InMemoryBlobSink();
+    }
+
+    @Test
+    public void testLocalFileBlobSinkCommitsBlocksInOrder() throws Exception
+    {
+        localSink.createContainerIfNotExists(CONTAINER);
+        stageAndCommit(localSink, "dir/sample_000.00.csv");
+
+        Path blob = root.resolve(CONTAINER).resolve("dir/sample_000.00.csv");
+        assertEquals("hello, world", new String(Files.readAllBytes(blob), StandardCharsets.UTF_8));
+        assertEquals(ImmutableList.of("MDAwMDAwMDA=", "MDAwMDAwMDE="), localSink.getCommittedBlockList(CONTAINER, "dir/sample_000.00.csv"));
+        assertEquals(ImmutableList.of(), localSink.getCommittedBlockList(CONTAINER, "dir/sample_000.01.csv"));
+        assertEquals(ImmutableMap.of("task", "0"), localSink.getBlobMetadata(CONTAINER, "dir/sample_000.00.csv"));
+        assertEquals(HELLO_WORLD_MD5, localSink.getBlobContentMd5(CONTAINER, "dir/sample_000.00.csv"));
+    }
+
+    @Test
+    public void testLocalFileBlobSinkWithLongPath() throws Exception
+    {
+        localSink.createContainerIfNotExists(CONTAINER);
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            path.append("directory_").append(i).append('/');
+        }
+        path.append("sample_000.00.csv");
+        stageAndCommit(localSink, path.toString());
+
+        assertEquals(ImmutableList.of("MDAwMDAwMDA=", "MDAwMDAwMDE="), localSink.getCommittedBlockList(CONTAINER, path.toString()));
+    }
+
+    @Test
+    public void testLocalFileBlobSinkIgnoresLateStageOfCommittedBlock() throws Exception
+    {
+        localSink.createContainerIfNotExists(CONTAINER);
+        stageAndCommit(localSink, "a.csv");
+        List<Path> files = listFiles(root);
+
+        byte[] data = "hello".getBytes(StandardCharsets.UTF_8);
+        localSink.stageBlock(CONTAINER, "a.csv", "MDAwMDAwMDA=", data, 0, data.length);
+
+        assertEquals(files, listFiles(root));
+        assertEquals("hello, world", new String(Files.readAllBytes(root.resolve(CONTAINER).resolve("a.csv")), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLocalFileBlobSinkReusesCommittedBlocks() throws Exception
+    {
+        localSink.createContainerIfNotExists(CONTAINER);
+        assertCommitReusesCommittedBlocks(localSink);
+        Path blob = root.resolve(CONTAINER).resolve("a.csv");
+        assertEquals("hello, hello", new String(Files.readAllBytes(blob), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testInMemoryBlobSinkReusesCommittedBlocks() throws Exception
+    {
+        memorySink.createContainerIfNotExists(CONTAINER);
+        assertCommitReusesCommittedBlocks(memorySink);
+        assertArrayEquals("hello, hello".getBytes(StandardCharsets.UTF_8), memorySink.getBlob(CONTAINER, "a.csv"));
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testLocalFileBlobSinkWithNonExistingContainer() throws Exception
+    {
+        localSink.stageBlock("non-existing-container", "a.csv", "AAAA", new byte[1], 0, 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void testLocalFileBlobSinkWithUnstagedBlock() throws Exception
+    {
+        localSink.createContainerIfNotExists(CONTAINER);
+        localSink.commitBlockList(CONTAINER, "a.csv", ImmutableList.of("AAAA"), null, NO_METADATA);
+    }
+
+    @Test
+    public void testLocalFileBlobSinkInjectsLatency() throws Exception
+    {
+        LocalFileBlobSink sink = new LocalFileBlobSink(root, 50, 0);
+        sink.createContainerIfNotExists(CONTAINER);
+
+        long start = System.nanoTime();
+        sink.stageBlock(CONTAINER, "a.csv", "AAAA", new byte[100], 0, 100);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertTrue(elapsedMillis >= 50);
+    }
+
+    @Test
+    public void testLocalFileBlobSinksShareBandwidthOfDirectory() throws Exception
+    {
+        localSink.createContainerIfNotExists(CONTAINER);
+        // two tasks upload 600 bytes each in parallel to the same directory
+        ExecutorService tasks = Executors.newFixedThreadPool(2);
+        try {
+            long start = System.nanoTime();
+            List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                final LocalFileBlobSink sink = new LocalFileBlobSink(root, 0, 1000);
+                final String path = String.format("sample_%03d.00.csv", i);
+                results.add(tasks.submit(() -> {
+                    for (int block = 0; block < 3; block++) {
+                        sink.stageBlock(CONTAINER, path, "AAA" + block, new byte[200], 0, 200);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+            // 1200 bytes at 1000 bytes per second in total, where the first request doesn't wait
+            assertTrue(elapsedMillis >= 900);
+        }
+        finally {
+            tasks.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInMemoryBlobSinkCommitsBlocksInOrder() throws Exception
+    {
+        memorySink.createContainerIfNotExists(CONTAINER);
+        stageAndCommit(memorySink, "sample_000.00.csv");
+
+        assertArrayEquals("hello, world".getBytes(StandardCharsets.UTF_8), memorySink.getBlob(CONTAINER, "sample_000.00.csv"));
+        assertNull(memorySink.getBlob(CONTAINER, "sample_000.01.csv"));
+        assertEquals(ImmutableMap.of("task", "0"), memorySink.getBlobMetadata(CONTAINER, "sample_000.00.csv"));
+        assertEquals(HELLO_WORLD_MD5, memorySink.getBlobContentMd5(CONTAINER, "sample_000.00.csv"));
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testInMemoryBlobSinkWithNonExistingContainer() throws Exception
+    {
+        memorySink.stageBlock("non-existing-container", "a.csv", "AAAA", new byte[1], 0, 1);
+    }
+
+    @Test
+    public void testLocalFileBlobSinkListsBlobsUnderPrefix() throws Exception
+    {
+        localSink.createContainerIfNotExists(CONTAINER);
+        stageAndCommit(localSink, "logs/a/sample_000.00.csv");
+        stageAndCommit(localSink, "logs/sample_001.00.csv");
+        stageAndCommit(localSink, "other/sample_000.00.csv");
+
+        final List<String> paths = new ArrayList<>();
+        localSink.listBlobs(CONTAINER, "logs/", page -> paths.addAll(page));
+        assertEquals(ImmutableList.of("logs/a/sample_000.00.csv", "logs/sample_001.00.csv"), paths);
+    }
+
+    private static List<Path> listFiles(Path dir) throws IOException
+    {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private void assertCommitReusesCommittedBlocks(BlobSink sink) throws IOException
+    {
+        stageAndCommit(sink, "a.csv");
+        // the next commit refers to the committed block "hello" without staging it again
+        byte[] data = ", hello".getBytes(StandardCharsets.UTF_8);
+        sink.stageBlock(CONTAINER, "a.csv", "MDAwMDAwMDI=", data, 0, 2);
+        sink.commitBlockList(CONTAINER, "a.csv", ImmutableList.of("MDAwMDAwMDA=", "MDAwMDAwMDI=", "MDAwMDAwMDA="), null, NO_METADATA);
+        assertEquals(ImmutableList.of("MDAwMDAwMDA=", "MDAwMDAwMDI=", "MDAwMDAwMDA="), sink.getCommittedBlockList(CONTAINER, "a.csv"));
+    }
+
+    private void stageAndCommit(BlobSink sink, String path) throws IOException
+    {
+        byte[] data = "xxhello, worldxx".getBytes(StandardCharsets.UTF_8);
+        // stage out of order to check that the committed list decides the order
+        sink.stageBlock(CONTAINER, path, "MDAwMDAwMDE=", data, 7, 7);
+        sink.stageBlock(CONTAINER, path, "MDAwMDAwMDA=", data, 2, 5);
+        sink.commitBlockList(CONTAINER, path, ImmutableList.of("MDAwMDAwMDA=", "MDAwMDAwMDE="), HELLO_WORLD_MD5, ImmutableMap.of("task", "0"));
+    }
+}
@@ -0,0 +1,175 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.google.common.io.BaseEncoding;
+import org.embulk.config.ConfigException;
+import org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.EncryptionType;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+public class TestBlockEncryptor
+{
+    private static final int BLOCK_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testAesGcmRoundTrip() throws Exception
+    {
+        assertRoundTrip(EncryptionType.AES_GCM);
+    }
+
+    @Test
+    public void testAesCtrRoundTrip() throws Exception
+    {
+        assertRoundTrip(EncryptionType.AES_CTR);
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testLoadKeyEncryptionKeyWithInvalidLength() throws Exception
+    {
+        BlockEncryptor.loadKeyEncryptionKey(writeKeyFile(new byte[10]));
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void testAesGcmDetectsReorderedBlocks() throws Exception
+    {
+        SecretKey keyEncryptionKey = newKeyEncryptionKey();
+        BlockEncryptor encryptor = new BlockEncryptor(EncryptionType.AES_GCM);
+        byte[] encrypted = encrypt(encryptor, randomBytes(BLOCK_SIZE * 3, 2));
+
+        // swap the first two blocks including their IVs
+        int encryptedBlockSize = BLOCK_SIZE + encryptor.getOverhead();
+        byte[] reordered = encrypted.clone();
+        System.arraycopy(encrypted, 0, reordered, encryptedBlockSize, encryptedBlockSize);
+        System.arraycopy(encrypted, encryptedBlockSize, reordered, 0, encryptedBlockSize);
+
+        decrypt(reordered, encryptor.getMetadata(keyEncryptionKey, BLOCK_SIZE, 3), keyEncryptionKey, encryptor.getOverhead());
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void testAesGcmDetectsDroppedLastBlock() throws Exception
+    {
+        SecretKey keyEncryptionKey = newKeyEncryptionKey();
+        BlockEncryptor encryptor = new BlockEncryptor(EncryptionType.AES_GCM);
+        byte[] encrypted = encrypt(encryptor, randomBytes(BLOCK_SIZE * 3, 2));
+
+        // even with a block count matching the truncated blob, the new last block isn't marked as the last one
+        byte[] truncated = Arrays.copyOf(encrypted, (BLOCK_SIZE + encryptor.getOverhead()) * 2);
+        decrypt(truncated, encryptor.getMetadata(keyEncryptionKey, BLOCK_SIZE, 2), keyEncryptionKey, encryptor.getOverhead());
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void testBlockCountDetectsTruncation() throws Exception
+    {
+        SecretKey keyEncryptionKey = newKeyEncryptionKey();
+        BlockEncryptor encryptor = new BlockEncryptor(EncryptionType.AES_CTR);
+        byte[] encrypted = encrypt(encryptor, randomBytes(BLOCK_SIZE * 3, 2));
+
+        byte[] truncated = Arrays.copyOf(encrypted, (BLOCK_SIZE + encryptor.getOverhead()) * 2);
+        decrypt(truncated, encryptor.getMetadata(keyEncryptionKey, BLOCK_SIZE, 3), keyEncryptionKey, encryptor.getOverhead());
+    }
+
+    private void assertRoundTrip(EncryptionType type) throws Exception
+    {
+        SecretKey keyEncryptionKey = newKeyEncryptionKey();
+        byte[] data = randomBytes(BLOCK_SIZE * 10 + 123, 2);
+
+        BlockEncryptor encryptor = new BlockEncryptor(type);
+        byte[] encrypted = encrypt(encryptor, data);
+        Map<String, String> metadata = encryptor.getMetadata(keyEncryptionKey, BLOCK_SIZE, 11);
+
+        assertEquals(String.valueOf(BLOCK_SIZE), metadata.get("encryption_block_size"));
+        assertEquals((BLOCK_SIZE + encryptor.getOverhead()) * 10 + 123 + encryptor.getOverhead(), encrypted.length);
+        assertArrayEquals(data, decrypt(encrypted, metadata, keyEncryptionKey, encryptor.getOverhead()));
+    }
+
+    // encrypts blocks one by one like ParallelEncryptingOutputStream does on its workers
+    private static byte[] encrypt(BlockEncryptor encryptor, byte[] data) throws Exception
+    {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        long blockCount = Math.max(1, (data.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        for (long index = 0; index < blockCount; index++) {
+            int offset = (int) index * BLOCK_SIZE;
+            encrypted.write(encryptor.encrypt(index, index == blockCount - 1, data, offset, Math.min(BLOCK_SIZE, data.length - offset)));
+        }
+        return encrypted.toByteArray();
+    }
+
+    // decrypts like a reader of the blob would, without trusting the IVs stored in blocks
+    static byte[] decrypt(byte[] encrypted, Map<String, String> metadata, SecretKey keyEncryptionKey, int overhead) throws Exception
+    {
+        Cipher unwrap = Cipher.getInstance(metadata.get("encryption_key_wrap_algorithm"));
+        unwrap.init(Cipher.UNWRAP_MODE, keyEncryptionKey);
+        Key contentKey = unwrap.unwrap(BaseEncoding.base64().decode(metadata.get("encryption_wrapped_key")), "AES", Cipher.SECRET_KEY);
+
+        String algorithm = metadata.get("encryption_algorithm");
+        boolean gcm = algorithm.contains("GCM");
+        int ivLength = gcm ? 12 : 16;
+        int encryptedBlockSize = Integer.parseInt(metadata.get("encryption_block_size")) + overhead;
+        long blockCount = Long.parseLong(metadata.get("encryption_block_count"));
+        if (Math.max(1, (encrypted.length + encryptedBlockSize - 1) / encryptedBlockSize) != blockCount) {
+            throw new GeneralSecurityException("Number of blocks doesn't match encryption_block_count");
+        }
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        for (long index = 0; index < blockCount; index++) {
+            int offset = (int) (index * encryptedBlockSize);
+            byte[] block = Arrays.copyOfRange(encrypted, offset, Math.min(offset + encryptedBlockSize, encrypted.length));
+            Cipher cipher = Cipher.getInstance(algorithm);
+            if (gcm) {
+                byte[] iv = ByteBuffer.allocate(ivLength).putInt(0).putLong(index).array();
+                cipher.init(Cipher.DECRYPT_MODE, contentKey, new GCMParameterSpec(128, iv));
+                cipher.updateAAD(BlockEncryptor.getAdditionalData(index, index == blockCount - 1));
+            }
+            else {
+                byte[] iv = ByteBuffer.allocate(ivLength).putLong(index).putLong(0).array();
+                cipher.init(Cipher.DECRYPT_MODE, contentKey, new IvParameterSpec(iv));
+            }
+            plain.write(cipher.doFinal(block, ivLength, block.length - ivLength));
+        }
+        return plain.toByteArray();
+    }
+
+    private SecretKey newKeyEncryptionKey() throws Exception
+    {
+        byte[] kek = new byte[32];
+        new Random(1).nextBytes(kek);
+        return BlockEncryptor.loadKeyEncryptionKey(writeKeyFile(kek));
+    }
+
+    private static byte[] randomBytes(int length, long seed)
+    {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private Path writeKeyFile(byte[] key) throws Exception
+    {
+        Path keyFile = tmp.newFile().toPath();
+        Files.write(keyFile, BaseEncoding.base64().encode(key).getBytes(StandardCharsets.US_ASCII));
+        return keyFile;
+    }
+}
@@ -0,0 +1,101 @@
+package org.embulk.output.azure_blob_storage;
+
+import org.embulk.output.azure_blob_storage.ContentDefinedChunker.Chunk;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class TestContentDefinedChunker
+{
+    private static final int TARGET_SIZE = 4096;
+    private static final int MAX_SIZE = TARGET_SIZE * 4;
+
+    @Test
+    public void testChunksCoverInputWithinSizeLimits()
+    {
+        byte[] data = randomBytes(1024 * 1024, 1);
+        List<Chunk> chunks = chunk(data, 1000);
+
+        long total = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            assertTrue(chunk.getLength() <= MAX_SIZE);
+            if (i < chunks.size() - 1) {
+                assertTrue(chunk.getLength() >= TARGET_SIZE / 4);
+            }
+            // Base64 of SHA-256
+            assertEquals(44, chunk.getBlockId().length());
+            total += chunk.getLength();
+        }
+        assertEquals(data.length, total);
+    }
+
+    @Test
+    public void testAverageChunkSize()
+    {
+        byte[] data = randomBytes(8 * 1024 * 1024, 4);
+        double average = (double) data.length / chunk(data, 8192).size();
+        // TARGET_SIZE / 4 minimum + TARGET_SIZE on average until a boundary, cut at MAX_SIZE
+        assertTrue(average > TARGET_SIZE * 1.1);
+        assertTrue(average < TARGET_SIZE * 1.3);
+    }
+
+    @Test
+    public void testChunksDoNotDependOnBufferBoundaries()
+    {
+        byte[] data = randomBytes(256 * 1024, 2);
+        assertEquals(blockIds(chunk(data, data.length)), blockIds(chunk(data, 777)));
+    }
+
+    @Test
+    public void testInsertionChangesNearbyChunksOnly()
+    {
+        byte[] data = randomBytes(1024 * 1024, 3);
+        byte[] edited = new byte[data.length + 10];
+        System.arraycopy(data, 0, edited, 0, 500000);
+        System.arraycopy(data, 500000, edited, 500010, data.length - 500000);
+
+        List<String> original = blockIds(chunk(data, 8192));
+        Set<String> reused = new HashSet<>(original);
+        int changed = 0;
+        for (String blockId : blockIds(chunk(edited, 8192))) {
+            if (!reused.contains(blockId)) {
+                changed++;
+            }
+        }
+        assertTrue(original.size() > 100);
+        assertTrue(changed <= 3);
+    }
+
+    private static List<Chunk> chunk(byte[] data, int bufferSize)
+    {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(TARGET_SIZE, MAX_SIZE);
+        for (int offset = 0; offset < data.length; offset += bufferSize) {
+            chunker.update(data, offset, Math.min(bufferSize, data.length - offset));
+        }
+        return chunker.finish();
+    }
+
+    private static List<String> blockIds(List<Chunk> chunks)
+    {
+        List<String> blockIds = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            blockIds.add(chunk.getBlockId());
+        }
+        return blockIds;
+    }
+
+    private static byte[] randomBytes(int size, long seed)
+    {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,159 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.embulk.EmbulkTestRuntime;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestHedgingBlobSink
+{
+    private static final String CONTAINER = "my-container";
+    private static final Map<String, String> NO_METADATA = ImmutableMap.of();
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private InMemoryBlobSink memorySink;
+
+    @Before
+    public void createResources()
+    {
+        memorySink = new InMemoryBlobSink();
+    }
+
+    @Test
+    public void testHedgesSlowRequest() throws Exception
+    {
+        memorySink.createContainerIfNotExists(CONTAINER);
+        final Set<String> stalledBlocks = ConcurrentHashMap.newKeySet();
+        final CountDownLatch lateStage = new CountDownLatch(1);
+        BlobSink stallingSink = new ForwardingBlobSink(memorySink)
+        {
+            @Override
+            public void stageBlock(String containerName, String path, String blockId, byte[] data, int offset, int length) throws IOException
+            {
+                // only the first request of the last block stalls. It ignores interrupts like blocking I/O
+                // and stages its block after the blob is committed.
+                if (blockId.equals(blockId(19)) && stalledBlocks.add(blockId)) {
+                    Uninterruptibles.sleepUninterruptibly(2, TimeUnit.SECONDS);
+                    super.stageBlock(containerName, path, blockId, data, offset, length);
+                    lateStage.countDown();
+                    return;
+                }
+                super.stageBlock(containerName, path, blockId, data, offset, length);
+            }
+        };
+        HedgingBlobSink sink = new HedgingBlobSink(stallingSink, new HedgeTracker(99.0, 1.0, 10));
+
+        long start = System.nanoTime();
+        List<String> blockIds = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] data = new byte[] {(byte) i};
+            sink.stageBlock(CONTAINER, "a.csv", blockId(i), data, 0, 1);
+            blockIds.add(blockId(i));
+        }
+        sink.commitBlockList(CONTAINER, "a.csv", blockIds, null, NO_METADATA);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        sink.close();
+
+        assertTrue(elapsedMillis < 1000);
+        assertEquals(20, sink.getRequestCount());
+        assertEquals(1, sink.getHedgedRequestCount());
+        assertEquals(1, sink.getHedgeWinCount());
+
+        // the stalled request lands after the commit without leaving a staged block behind
+        assertTrue(lateStage.await(10, TimeUnit.SECONDS));
+        assertEquals(0, memorySink.getStagedBlobCount());
+        assertEquals(20, memorySink.getBlob(CONTAINER, "a.csv").length);
+        assertEquals(19, memorySink.getBlob(CONTAINER, "a.csv")[19]);
+    }
+
+    @Test
+    public void testRespectsMaxRatio() throws Exception
+    {
+        memorySink.createContainerIfNotExists(CONTAINER);
+        final AtomicInteger requests = new AtomicInteger();
+        BlobSink stallingSink = new ForwardingBlobSink(memorySink)
+        {
+            @Override
+            public void stageBlock(String containerName, String path, String blockId, byte[] data, int offset, int length) throws IOException
+            {
+                // after 16 fast requests fill the window, every request including hedges stalls far past
+                // the median, so only the budget limits hedging
+                if (requests.incrementAndGet() > 16) {
+                    Uninterruptibles.sleepUninterruptibly(50, TimeUnit.MILLISECONDS);
+                }
+                super.stageBlock(containerName, path, blockId, data, offset, length);
+            }
+        };
+        double maxHedgeRatio = 0.1;
+        HedgingBlobSink sink = new HedgingBlobSink(stallingSink, new HedgeTracker(50.0, maxHedgeRatio, 5));
+        for (int i = 0; i < 32; i++) {
+            sink.stageBlock(CONTAINER, "a.csv", blockId(i), new byte[1], 0, 1);
+        }
+        sink.close();
+
+        assertEquals(32, sink.getRequestCount());
+        assertTrue(sink.getHedgedRequestCount() > 0);
+        assertTrue(sink.getHedgedRequestCount() <= maxHedgeRatio * sink.getRequestCount());
+    }
+
+    @Test
+    public void testSharesLatencyWindowAcrossSinks() throws Exception
+    {
+        memorySink.createContainerIfNotExists(CONTAINER);
+        final AtomicBoolean stalled = new AtomicBoolean();
+        BlobSink stallingSink = new ForwardingBlobSink(memorySink)
+        {
+            @Override
+            public void stageBlock(String containerName, String path, String blockId, byte[] data, int offset, int length) throws IOException
+            {
+                if (stalled.compareAndSet(false, true)) {
+                    Uninterruptibles.sleepUninterruptibly(2, TimeUnit.SECONDS);
+                }
+                super.stageBlock(containerName, path, blockId, data, offset, length);
+            }
+        };
+        HedgeTracker tracker = new HedgeTracker(99.0, 1.0, 10);
+        HedgingBlobSink first = new HedgingBlobSink(memorySink, tracker);
+        HedgingBlobSink second = new HedgingBlobSink(stallingSink, tracker);
+
+        // another task fills the window, so the first request of this task is already hedged
+        for (int i = 0; i < 16; i++) {
+            first.stageBlock(CONTAINER, "a.csv", blockId(i), new byte[1], 0, 1);
+        }
+        long start = System.nanoTime();
+        second.stageBlock(CONTAINER, "b.csv", blockId(0), new byte[1], 0, 1);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        first.close();
+        second.close();
+
+        assertTrue(elapsedMillis < 1000);
+        assertEquals(16, first.getRequestCount());
+        assertEquals(0, first.getHedgedRequestCount());
+        assertEquals(1, second.getRequestCount());
+        assertEquals(1, second.getHedgedRequestCount());
+        assertEquals(1, second.getHedgeWinCount());
+    }
+
+    private static String blockId(int index)
+    {
+        return String.format("%08d", index);
+    }
+}
@@ -0,0 +1,182 @@
+package org.embulk.output.azure_blob_storage;
+
+import com.google.common.io.BaseEncoding;
+import org.embulk.output.azure_blob_storage.AzureBlobStorageFileOutputPlugin.EncryptionType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import javax.crypto.SecretKey;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class TestParallelEncryptingOutputStream
+{
+    private static final int BLOCK_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private EncryptionWorkerPool pool;
+
+    @Before
+    public void createResources()
+    {
+        pool = new EncryptionWorkerPool(4);
+    }
+
+    @After
+    public void destroyResources()
+    {
+        pool.shutdown();
+    }
+
+    @Test
+    public void testAesGcmRoundTrip() throws Exception
+    {
+        assertRoundTrip(EncryptionType.AES_GCM, BLOCK_SIZE * 10 + 123);
+    }
+
+    @Test
+    public void testAesCtrRoundTrip() throws Exception
+    {
+        assertRoundTrip(EncryptionType.AES_CTR, BLOCK_SIZE * 10 + 123);
+    }
+
+    @Test
+    public void testRoundTripOfBlockAlignedData() throws Exception
+    {
+        assertRoundTrip(EncryptionType.AES_GCM, BLOCK_SIZE * 3);
+    }
+
+    @Test
+    public void testRoundTripOfEmptyData() throws Exception
+    {
+        assertRoundTrip(EncryptionType.AES_GCM, 0);
+    }
+
+    @Test
+    public void testStreamsShareBlockPermits() throws Exception
+    {
+        final SecretKey keyEncryptionKey = newKeyEncryptionKey();
+        final EncryptionWorkerPool smallPool = new EncryptionWorkerPool(2);
+
+        // more streams than permits, one thread each like tasks
+        ExecutorService tasks = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final long seed = i;
+                results.add(tasks.submit(() -> {
+                    byte[] data = randomBytes(BLOCK_SIZE * 50 + 7, seed);
+                    BlockEncryptor encryptor = new BlockEncryptor(EncryptionType.AES_GCM);
+                    byte[] encrypted = encrypt(encryptor, data, smallPool);
+                    assertArrayEquals(data, TestBlockEncryptor.decrypt(encrypted, encryptor.getMetadata(keyEncryptionKey, BLOCK_SIZE, 51), keyEncryptionKey, encryptor.getOverhead()));
+                    return null;
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+            // every permit is released after the streams are closed
+            assertEquals(2, smallPool.getBlockPermits().availablePermits());
+        }
+        finally {
+            tasks.shutdownNow();
+            smallPool.shutdown();
+        }
+    }
+
+    @Test
+    public void testIdleStreamDoesNotBlockOtherStreams() throws Exception
+    {
+        final SecretKey keyEncryptionKey = newKeyEncryptionKey();
+        BlockEncryptor idleEncryptor = new BlockEncryptor(EncryptionType.AES_GCM);
+        ByteArrayOutputStream idleEncrypted = new ByteArrayOutputStream();
+        byte[] idleData = randomBytes(BLOCK_SIZE * 8 + 1, 0);
+        ParallelEncryptingOutputStream idle = new ParallelEncryptingOutputStream(idleEncrypted, idleEncryptor, BLOCK_SIZE, pool);
+
+        ExecutorService task = Executors.newSingleThreadExecutor();
+        try {
+            // submits more blocks than threads and then waits, like a task blocked on its input
+            idle.write(idleData, 0, idleData.length);
+
+            final byte[] data = randomBytes(BLOCK_SIZE * 3, 1);
+            final BlockEncryptor encryptor = new BlockEncryptor(EncryptionType.AES_GCM);
+            Future<byte[]> encrypted = task.submit(() -> encrypt(encryptor, data, pool));
+            assertArrayEquals(data, TestBlockEncryptor.decrypt(encrypted.get(10, TimeUnit.SECONDS), encryptor.getMetadata(keyEncryptionKey, BLOCK_SIZE, 3), keyEncryptionKey, encryptor.getOverhead()));
+        }
+        finally {
+            task.shutdownNow();
+            idle.close();
+        }
+
+        assertArrayEquals(idleData, TestBlockEncryptor.decrypt(idleEncrypted.toByteArray(), idleEncryptor.getMetadata(keyEncryptionKey, BLOCK_SIZE, 9), keyEncryptionKey, idleEncryptor.getOverhead()));
+        assertEquals(4, pool.getBlockPermits().availablePermits());
+    }
+
+    private void assertRoundTrip(EncryptionType type, int length) throws Exception
+    {
+        SecretKey keyEncryptionKey = newKeyEncryptionKey();
+        byte[] data = randomBytes(length, 2);
+
+        BlockEncryptor encryptor = new BlockEncryptor(type);
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        ParallelEncryptingOutputStream out = new ParallelEncryptingOutputStream(encrypted, encryptor, BLOCK_SIZE, pool);
+        try {
+            // write in pieces not aligned to blocks
+            for (int offset = 0; offset < data.length; offset += 333) {
+                out.write(data, offset, Math.min(333, data.length - offset));
+            }
+        }
+        finally {
+            out.close();
+        }
+        long blockCount = out.getBlockCount();
+        Map<String, String> metadata = encryptor.getMetadata(keyEncryptionKey, BLOCK_SIZE, blockCount);
+
+        assertEquals(Math.max(1, (length + BLOCK_SIZE - 1) / BLOCK_SIZE), blockCount);
+        assertArrayEquals(data, TestBlockEncryptor.decrypt(encrypted.toByteArray(), metadata, keyEncryptionKey, encryptor.getOverhead()));
+    }
+
+    private static byte[] encrypt(BlockEncryptor encryptor, byte[] data, EncryptionWorkerPool pool) throws Exception
+    {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        try (ParallelEncryptingOutputStream out = new ParallelEncryptingOutputStream(encrypted, encryptor, BLOCK_SIZE, pool)) {
+            out.write(data, 0, data.length);
+        }
+        return encrypted.toByteArray();
+    }
+
+    private SecretKey newKeyEncryptionKey() throws Exception
+    {
+        byte[] kek = new byte[32];
+        new Random(1).nextBytes(kek);
+        Path keyFile = tmp.newFile().toPath();
+        Files.write(keyFile, BaseEncoding.base64().encode(kek).getBytes(StandardCharsets.US_ASCII));
+        return BlockEncryptor.loadKeyEncryptionKey(keyFile);
+    }
+
+    private static byte[] randomBytes(int length, long seed)
+    {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}